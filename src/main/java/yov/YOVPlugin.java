@@ -3,21 +3,30 @@ package yov;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
+import yov.async.ChangeLogTailer;
+import yov.async.IoExecutor;
+import yov.async.SpillFile;
+import yov.async.WriteJournal;
 import yov.async.WriteQueue;
+import yov.cache.ValueInterner;
 import yov.cache.VariableCache;
 import yov.command.YOVCommand;
 import yov.defaults.DefaultVariables;
+import yov.listener.AsyncTabCompleteListener;
 import yov.listener.PapiExpansionListener;
 import yov.placeholder.RoundedPlaceholder;
 import yov.placeholder.VarPlaceholder;
 import yov.placeholder.VarPlayerKeyPlaceholder;
 import yov.service.MigrationService;
 import yov.service.VariableService;
+import yov.storage.ChangeLogCapable;
 import yov.storage.StorageBackend;
 import yov.storage.StorageManager;
 
+import java.io.File;
 import java.util.List;
 import java.util.logging.Level;
 
@@ -33,7 +42,10 @@ public class YOVPlugin extends JavaPlugin {
     private MigrationService migrationService;
 
     private PapiExpansionListener papiListener;
+    private YOVCommand commandExecutor;
     private WriteQueue writeQueue;
+    private ChangeLogTailer changeLogTailer;
+    private IoExecutor ioExecutor;
 
     public VariableCache getVariableCache() {
         return cache;
@@ -43,6 +55,14 @@ public class YOVPlugin extends JavaPlugin {
         return variableService;
     }
 
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    public YOVCommand getCommandExecutor() {
+        return commandExecutor;
+    }
+
     public String getStorageType() {
         if (backend == null) return "UNKNOWN";
 
@@ -81,9 +101,13 @@ public class YOVPlugin extends JavaPlugin {
 
         PluginCommand cmd = getCommand("yov");
         if (cmd != null) {
-            YOVCommand executor = new YOVCommand(this, variableService, cache, migrationService);
-            cmd.setExecutor(executor);
-            cmd.setTabCompleter(executor);
+            commandExecutor = new YOVCommand(this, variableService, cache, migrationService);
+            cmd.setExecutor(commandExecutor);
+            cmd.setTabCompleter(commandExecutor);
+
+            if (AsyncTabCompleteListener.register(this, cmd)) {
+                getLogger().info("Paper async tab completion enabled.");
+            }
         }
 
         if (Bukkit.getPluginManager().getPlugin("PlaceholderAPI") != null) {
@@ -100,7 +124,11 @@ public class YOVPlugin extends JavaPlugin {
     public void onDisable() {
 
         if (variableService != null) {
-            variableService.setShuttingDown(true);
+            variableService.close();
+        }
+
+        if (changeLogTailer != null) {
+            changeLogTailer.close();
         }
 
         try {
@@ -109,6 +137,10 @@ public class YOVPlugin extends JavaPlugin {
             }
         } catch (Exception ignored) {}
 
+        if (ioExecutor != null) {
+            ioExecutor.close();
+        }
+
         try {
             if (backend != null) backend.close();
         } catch (Exception e) {
@@ -130,6 +162,15 @@ public class YOVPlugin extends JavaPlugin {
 
     private boolean setupServices() {
 
+        if (variableService != null) {
+            variableService.close();
+        }
+
+        if (changeLogTailer != null) {
+            changeLogTailer.close();
+            changeLogTailer = null;
+        }
+
         if (writeQueue != null) {
             try {
                 writeQueue.close();
@@ -137,6 +178,11 @@ public class YOVPlugin extends JavaPlugin {
             writeQueue = null;
         }
 
+        if (ioExecutor != null) {
+            ioExecutor.close();
+            ioExecutor = null;
+        }
+
         if (backend != null) {
             try {
                 backend.close();
@@ -156,21 +202,109 @@ public class YOVPlugin extends JavaPlugin {
             backend = storageManager.getBackend();
             backend.connect();
 
+            ioExecutor = new IoExecutor("YOV-IO", IoExecutor.Mode.from(getConfig().getString("io.threads", "auto")), getLogger());
+            if (ioExecutor.isVirtual()) {
+                getLogger().info("Running storage I/O on virtual threads.");
+            }
+
+            ChangeLogCapable changeLog = backend instanceof ChangeLogCapable capable && capable.isChangeLogEnabled() ? capable : null;
+            long changeLogHead = changeLog != null ? changeLog.getChangeLogHead() : 0L;
+
+            WriteJournal journal = null;
+            if (getConfig().getBoolean("write-queue.journal.enabled", false)) {
+                journal = new WriteJournal(
+                        new File(getDataFolder(), "journal"),
+                        WriteJournal.FsyncPolicy.from(getConfig().getString("write-queue.journal.fsync", "interval")),
+                        getConfig().getLong("write-queue.journal.fsync-interval-ms", 50L),
+                        getLogger()
+                );
+            }
+
+            // another server may overwrite a key behind our back; the change log only reports it after the fact
+            boolean sharedStorage = type.equalsIgnoreCase("mariadb");
+
+            int maxPending = getConfig().getInt("write-queue.max-pending", 200000);
+            SpillFile spill = maxPending > 0 ? new SpillFile(new File(getDataFolder(), "write-spill.bin")) : null;
+
+            writeQueue = new WriteQueue(backend, getLogger(), ioExecutor, journal, spill, new WriteQueue.Settings(
+                    getConfig().getLong("write-queue.flush-interval-ms", 200L),
+                    getConfig().getLong("write-queue.min-flush-interval-ms", 50L),
+                    getConfig().getLong("write-queue.max-flush-interval-ms", 2000L),
+                    getConfig().getInt("write-queue.max-batch-size", 1000),
+                    getConfig().getInt("write-queue.flush-threshold", 5000),
+                    getConfig().getBoolean("write-queue.skip-unchanged", true) && !sharedStorage,
+                    getConfig().getInt("write-queue.writer-lanes", 4),
+                    maxPending > 0 ? maxPending : Integer.MAX_VALUE,
+                    getConfig().getLong("write-queue.interactive-latency-ms", 50L),
+                    getConfig().getInt("write-queue.bulk-keys-per-second", 2000)
+            ));
+            try {
+                writeQueue.flush();
+            } catch (Exception e) {
+                getLogger().log(Level.WARNING, "Could not write replayed journal entries yet, retrying in the background", e);
+            }
+
             if (cache == null) cache = new VariableCache(getLogger());
-            else cache.getMap().clear();
+            else cache.clear();
+
+            cache.setInterner(getConfig().getBoolean("cache.deduplicate", true)
+                    ? new ValueInterner(getConfig().getInt("cache.dedup-max-value-length", 32))
+                    : null);
 
-            cache.loadFromDatabase(backend);
+            cache.getNegativeCache().configure(
+                    getConfig().getLong("cache.negative-ttl-seconds", 30L) * 1000L,
+                    getConfig().getInt("cache.negative-max-entries", 10000)
+            );
+
+            boolean onlineOnly = getConfig().getString("cache.mode", "full").equalsIgnoreCase("online");
+            if (onlineOnly) cache.loadGlobalsFromDatabase(backend);
+            else cache.loadFromDatabase(backend);
 
-            writeQueue = new WriteQueue(backend);
+            writeQueue.forEachPending((key, value) -> {
+                if (value == null) cache.remove(key);
+                else cache.put(key, value);
+            });
 
             variableService = new VariableService(
                     backend,
                     cache,
                     getLogger(),
                     PREFIX,
-                    writeQueue
+                    writeQueue,
+                    ioExecutor,
+                    getConfig().getBoolean("cache.stale-while-revalidate", true),
+                    getConfig().getLong("cache.refresh-batch-window-ms", 50L)
             );
 
+            // a striped add is acknowledged before its fold reaches the journal, which the journal rules out
+            int hotThreshold = getConfig().getInt("cache.hot-counter-threshold", 500);
+            if (journal != null && hotThreshold > 0) {
+                getLogger().info("Hot counters are off while the write journal is enabled.");
+                hotThreshold = 0;
+            }
+            variableService.enableHotCounters(hotThreshold, getConfig().getLong("cache.hot-counter-fold-ms", 50L));
+
+            if (onlineOnly) {
+                variableService.enableBoundedCache(getConfig().getLong("cache.evict-after-quit-seconds", 300L) * 1000L);
+                for (Player player : Bukkit.getOnlinePlayers()) {
+                    variableService.playerJoined(player.getName());
+                }
+            }
+
+            if (changeLog != null) {
+                changeLogTailer = new ChangeLogTailer(
+                        changeLog,
+                        variableService::applyRemoteChange,
+                        getLogger(),
+                        getConfig().getLong("storage.mariadb.change-log.poll-interval-ms", 500L),
+                        getConfig().getLong("storage.mariadb.change-log.gap-timeout-ms", 2000L),
+                        getConfig().getLong("storage.mariadb.change-log.retention-minutes", 60L) * 60_000L,
+                        getConfig().getLong("storage.mariadb.change-log.late-window-ms", 60_000L)
+                );
+                changeLogTailer.start(changeLogHead);
+                variableService.setChangeLogActive(true);
+            }
+
             if (migrationService == null)
                 migrationService = new MigrationService(this);
 
@@ -200,9 +334,9 @@ public class YOVPlugin extends JavaPlugin {
 
         PluginCommand cmd = getCommand("yov");
         if (cmd != null) {
-            YOVCommand executor = new YOVCommand(this, variableService, cache, migrationService);
-            cmd.setExecutor(executor);
-            cmd.setTabCompleter(executor);
+            commandExecutor = new YOVCommand(this, variableService, cache, migrationService);
+            cmd.setExecutor(commandExecutor);
+            cmd.setTabCompleter(commandExecutor);
         }
 
         sender.sendMessage(PREFIX + "§aReload complete!");
@@ -0,0 +1,207 @@
+package yov.async;
+
+import yov.storage.StorageBackend;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class CacheLoader {
+
+    private final StorageBackend backend;
+    private final Logger logger;
+    private final BiConsumer<String, String> onLoaded;
+    private final IoExecutor io;
+    private final long batchWindowMs;
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    // one backend read per key, shared by every caller that asks while it runs
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    // refreshes requested within one window are resolved by a single getMany
+    private final Queue<String> pendingRefresh = new ConcurrentLinkedQueue<>();
+    // keys in pendingRefresh, whose batch has not started reading yet
+    private final Set<String> queuedRefresh = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "YOV-CacheLoader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CacheLoader(StorageBackend backend, Logger logger, BiConsumer<String, String> onLoaded, IoExecutor io, long batchWindowMs) {
+        this.backend = backend;
+        this.logger = logger;
+        this.onLoaded = onLoaded;
+        this.io = io;
+        this.batchWindowMs = Math.max(0L, batchWindowMs);
+    }
+
+    public void refresh(String key) {
+        if (key == null) return;
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, future) != null) {
+            coalesced.increment();
+            return;
+        }
+
+        queuedRefresh.add(key);
+        pendingRefresh.add(key);
+        if (!drainScheduled.compareAndSet(false, true)) return;
+
+        try {
+            executor.schedule(this::drainRefreshes, batchWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            drainScheduled.set(false);
+            // loads waiting on a queued key would otherwise block on a future nothing completes
+            String queued;
+            while ((queued = pendingRefresh.poll()) != null) {
+                queuedRefresh.remove(queued);
+                CompletableFuture<String> waiting = inFlight.remove(queued);
+                if (waiting != null) waiting.cancel(false);
+            }
+        }
+    }
+
+    public String load(String key) throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, future);
+
+        // a refresh still waiting for its window would hold the caller for the window and a whole batch
+        if (existing != null && !queuedRefresh.contains(key)) {
+            coalesced.increment();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception cause) throw cause;
+                throw e;
+            }
+        }
+
+        try {
+            loads.increment();
+            batches.increment();
+            String value = backend.get(key);
+            future.complete(value);
+            return value;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private void drainRefreshes() {
+        drainScheduled.set(false);
+
+        List<String> batch = new ArrayList<>();
+        String key;
+        while ((key = pendingRefresh.poll()) != null) {
+            queuedRefresh.remove(key);
+            batch.add(key);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                submitBatch(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) submitBatch(batch);
+    }
+
+    // batches of one window are read concurrently, the scheduler thread never blocks on the backend
+    private void submitBatch(List<String> keys) {
+        try {
+            io.execute(() -> loadBatch(keys));
+        } catch (RejectedExecutionException e) {
+            loadBatch(keys);
+        }
+    }
+
+    private void loadBatch(List<String> keys) {
+        Map<String, String> values;
+        try {
+            loads.add(keys.size());
+            batches.increment();
+            values = backend.getMany(keys);
+        } catch (Exception e) {
+            for (String key : keys) {
+                CompletableFuture<String> future = inFlight.remove(key);
+                if (future != null) future.completeExceptionally(e);
+            }
+            if (!(e instanceof SQLException sqlEx
+                    && sqlEx.getMessage() != null
+                    && sqlEx.getMessage().contains("has been closed"))) {
+                logger.log(Level.WARNING, "Error refreshing " + keys.size() + " variables from backend", e);
+            }
+            return;
+        }
+
+        for (String key : keys) {
+            String value = values.get(key);
+            CompletableFuture<String> future = inFlight.remove(key);
+            if (future != null) future.complete(value);
+            try {
+                onLoaded.accept(key, value);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error applying refreshed variable '" + key + "'", e);
+            }
+        }
+    }
+
+    public void scheduleMaintenance(Runnable task, long periodMs) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Cache maintenance task failed", e);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int getQueuedCount() {
+        return inFlight.size();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        for (CompletableFuture<String> future : inFlight.values()) {
+            future.cancel(false);
+        }
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package yov.async;
+
+import yov.storage.ChangeLogCapable;
+import yov.storage.ChangeLogEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ChangeLogTailer {
+
+    private static final int BATCH_LIMIT = 1000;
+    private static final long PRUNE_INTERVAL_MS = 60_000L;
+    private static final int MAX_LATE_VERSIONS = 1000;
+
+    private final ChangeLogCapable changeLog;
+    private final BiConsumer<String, String> onChange;
+    private final Logger logger;
+
+    private final long pollIntervalMs;
+    private final long gapTimeoutMs;
+    private final long retentionMs;
+    private final long lateWindowMs;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "YOV-ChangeLog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile long lastVersion;
+    private long gapSince = 0L;
+    private long lastPrune = 0L;
+
+    // versions passed over after the gap timeout -> when; a slow transaction may still commit them
+    private final TreeMap<Long, Long> skipped = new TreeMap<>();
+    // newest version applied per key while skipped versions are outstanding
+    private final Map<String, Long> appliedSince = new HashMap<>();
+
+    public ChangeLogTailer(ChangeLogCapable changeLog,
+                           BiConsumer<String, String> onChange,
+                           Logger logger,
+                           long pollIntervalMs,
+                           long gapTimeoutMs,
+                           long retentionMs,
+                           long lateWindowMs) {
+        this.changeLog = changeLog;
+        this.onChange = onChange;
+        this.logger = logger;
+        this.pollIntervalMs = Math.max(50L, pollIntervalMs);
+        this.gapTimeoutMs = gapTimeoutMs;
+        this.retentionMs = retentionMs;
+        this.lateWindowMs = lateWindowMs;
+    }
+
+    public void start(long fromVersion) {
+        this.lastVersion = fromVersion;
+        executor.scheduleWithFixedDelay(this::pollSafe, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    private void pollSafe() {
+        try {
+            poll();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to read storage change log", e);
+        }
+    }
+
+    private void poll() throws Exception {
+        long now = System.currentTimeMillis();
+        long stride = changeLog.getChangeLogStride();
+
+        List<ChangeLogEntry> entries;
+        do {
+            entries = changeLog.readChanges(lastVersion, BATCH_LIMIT);
+
+            for (ChangeLogEntry entry : entries) {
+                // A version still missing may belong to a transaction that has not committed yet.
+                if (entry.version() > lastVersion + stride) {
+                    if (gapSince == 0L) gapSince = now;
+                    if (now - gapSince < gapTimeoutMs) {
+                        entries = List.of();
+                        break;
+                    }
+                }
+
+                if (gapSince != 0L) skip(lastVersion + stride, entry.version(), stride, now);
+
+                gapSince = 0L;
+                lastVersion = entry.version();
+                apply(entry);
+            }
+        } while (entries.size() == BATCH_LIMIT);
+
+        if (!skipped.isEmpty()) recheckSkipped(now);
+
+        if (retentionMs > 0 && now - lastPrune >= PRUNE_INTERVAL_MS) {
+            lastPrune = now;
+            changeLog.pruneChangeLog(now - retentionMs);
+        }
+    }
+
+    private void skip(long from, long to, long stride, long now) {
+        if (lateWindowMs <= 0) return;
+        long v = from;
+        for (; v < to && skipped.size() < MAX_LATE_VERSIONS; v += stride) {
+            skipped.put(v, now);
+        }
+        if (v < to) {
+            logger.warning("Change log gap too wide to watch: versions " + v + " to " + (to - stride)
+                    + " are not rechecked if they commit late (" + MAX_LATE_VERSIONS + " already watched).");
+        }
+    }
+
+    private void apply(ChangeLogEntry entry) {
+        if (!skipped.isEmpty()) appliedSince.merge(entry.key(), entry.version(), Math::max);
+        onChange.accept(entry.key(), entry.value());
+    }
+
+    private void recheckSkipped(long now) throws Exception {
+        for (ChangeLogEntry entry : changeLog.readVersions(List.copyOf(skipped.keySet()))) {
+            skipped.remove(entry.version());
+
+            // a newer change to the same key already went through
+            Long newer = appliedSince.get(entry.key());
+            if (newer != null && newer > entry.version()) continue;
+            apply(entry);
+        }
+
+        skipped.values().removeIf(at -> now - at >= lateWindowMs);
+        if (skipped.isEmpty()) appliedSince.clear();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
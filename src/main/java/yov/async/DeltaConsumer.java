@@ -0,0 +1,6 @@
+package yov.async;
+
+@FunctionalInterface
+public interface DeltaConsumer {
+    void accept(String key, String delta, long seq);
+}
@@ -0,0 +1,56 @@
+package yov.async;
+
+import yov.cache.CachedValue;
+
+import java.math.BigDecimal;
+
+// a queued add/rem: 5-decimal fixed point while the sum fits a long, BigDecimal once it does not;
+// only changed inside pending.compute for its key
+final class DeltaSum {
+
+    private long unscaled;
+    private BigDecimal exact;
+
+    DeltaSum(long unscaled) {
+        this.unscaled = unscaled;
+    }
+
+    DeltaSum(BigDecimal delta) {
+        add(delta);
+    }
+
+    DeltaSum add(long other) {
+        if (exact == null) {
+            long r = unscaled + other;
+            if (((unscaled ^ r) & (other ^ r)) >= 0) {
+                unscaled = r;
+                return this;
+            }
+        }
+        exact = toBigDecimal().add(BigDecimal.valueOf(other, CachedValue.SCALE));
+        return this;
+    }
+
+    DeltaSum add(BigDecimal other) {
+        if (exact == null && other.scale() <= CachedValue.SCALE) {
+            try {
+                return add(other.movePointRight(CachedValue.SCALE).longValueExact());
+            } catch (ArithmeticException ignored) {}
+        }
+        exact = toBigDecimal().add(other);
+        return this;
+    }
+
+    DeltaSum add(DeltaSum other) {
+        return other.exact != null ? add(other.exact) : add(other.unscaled);
+    }
+
+    BigDecimal toBigDecimal() {
+        return exact != null ? exact : BigDecimal.valueOf(unscaled, CachedValue.SCALE);
+    }
+
+    @Override
+    public String toString() {
+        return exact != null ? exact.toPlainString() : CachedValue.ofDecimal(unscaled).asString();
+    }
+}
@@ -0,0 +1,87 @@
+package yov.async;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// runs blocking backend calls; one virtual thread per task on Java 21+, a cached daemon pool before that
+public class IoExecutor {
+
+    public enum Mode {
+        AUTO,
+        PLATFORM,
+        VIRTUAL;
+
+        public static Mode from(String name) {
+            if (name == null) return AUTO;
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "platform" -> PLATFORM;
+                case "virtual" -> VIRTUAL;
+                default -> AUTO;
+            };
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    public IoExecutor(String name, Mode mode, Logger logger) {
+        ExecutorService created = null;
+        if (mode != Mode.PLATFORM) {
+            try {
+                created = newVirtualExecutor(name);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                if (mode == Mode.VIRTUAL) {
+                    logger.log(Level.WARNING, "Virtual threads need Java 21 or newer, using platform threads for I/O.", e);
+                }
+            }
+        }
+
+        this.virtual = created != null;
+        this.executor = created != null ? created : Executors.newCachedThreadPool(platformFactory(name));
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // the plugin is built for Java 16 and Bukkit's class loader ignores versioned jar entries,
+    // so the Java 21 API is looked up at runtime
+    private static ExecutorService newVirtualExecutor(String name) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+        ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+
+        Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) perTask.invoke(null, factory);
+    }
+
+    private static ThreadFactory platformFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
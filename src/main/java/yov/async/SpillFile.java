@@ -0,0 +1,156 @@
+package yov.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+// overflow for queued writes beyond the in-memory bound, read back in the order written
+public class SpillFile {
+
+    private static final byte OP_SET = 'S';
+    private static final byte OP_DELETE = 'D';
+    private static final byte OP_DELTA = 'A';
+
+    private final File file;
+
+    private DataOutputStream out;
+    private long writePos = 0L;
+    private long readPos = 0L;
+    private long records = 0L;
+
+    public SpillFile(File file) throws IOException {
+        this.file = file;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not clear spill file " + file);
+        }
+    }
+
+    public synchronized void appendSet(String key, String value) throws IOException {
+        append(OP_SET, key, value, 0L);
+    }
+
+    public synchronized void appendDelete(String key) throws IOException {
+        append(OP_DELETE, key, null, 0L);
+    }
+
+    // seq is the delta's journal sequence, 0 when it has none
+    public synchronized void appendDelta(String key, String delta, long seq) throws IOException {
+        append(OP_DELTA, key, delta, seq);
+    }
+
+    private void append(byte op, String key, String value, long seq) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+        }
+
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(op);
+        out.writeInt(k.length);
+        out.write(k);
+        writePos += 5 + k.length;
+
+        if (op != OP_DELETE) {
+            byte[] v = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(v.length);
+            out.write(v);
+            writePos += 4 + v.length;
+        }
+        if (op == OP_DELTA) {
+            out.writeLong(seq);
+            writePos += 8;
+        }
+        records++;
+    }
+
+    // a null value passed to apply means delete
+    public synchronized int drain(int max, BiConsumer<String, String> apply, DeltaConsumer applyDelta) throws IOException {
+        if (records == 0 || max <= 0) return 0;
+        out.flush();
+
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            long skipped = 0L;
+            while (skipped < readPos) {
+                long n = in.skip(readPos - skipped);
+                if (n <= 0) throw new IOException("Spill file is shorter than expected");
+                skipped += n;
+            }
+
+            while (count < max && readPos < writePos) {
+                byte op = in.readByte();
+                byte[] k = readBytes(in);
+                readPos += 5 + k.length;
+
+                String key = new String(k, StandardCharsets.UTF_8);
+                String value = null;
+                if (op != OP_DELETE) {
+                    byte[] v = readBytes(in);
+                    readPos += 4 + v.length;
+                    value = new String(v, StandardCharsets.UTF_8);
+                }
+
+                if (op == OP_DELTA) {
+                    long seq = in.readLong();
+                    readPos += 8;
+                    applyDelta.accept(key, value, seq);
+                } else {
+                    apply.accept(key, value);
+                }
+
+                count++;
+                records--;
+            }
+        }
+
+        if (records == 0) reset();
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return records == 0;
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    public synchronized long getSizeBytes() {
+        return writePos - readPos;
+    }
+
+    private void reset() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        writePos = 0L;
+        readPos = 0L;
+        records = 0L;
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not clear spill file " + file);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            reset();
+        } catch (IOException ignored) {}
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+}
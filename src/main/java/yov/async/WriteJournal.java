@@ -0,0 +1,461 @@
+package yov.async;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+public class WriteJournal {
+
+    public enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NONE;
+
+        public static FsyncPolicy from(String name) {
+            if (name == null) return INTERVAL;
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "always" -> ALWAYS;
+                case "none" -> NONE;
+                default -> INTERVAL;
+            };
+        }
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".tmp";
+    private static final String ID_FILE = "journal.id";
+    private static final byte OP_SET = 'S';
+    private static final byte OP_DELETE = 'D';
+    private static final byte OP_DELTA = 'A';
+    // first record of a segment holding the whole queue; replay starts at the newest one
+    private static final byte OP_SNAPSHOT = 'C';
+
+    private final File directory;
+    private final FsyncPolicy policy;
+    private final Logger logger;
+    // names this journal in storage that records which of its deltas it applied
+    private final String id;
+
+    private final Object appendLock = new Object();
+    // writeLock covers the buffer handoff and the channel swap, forceLock the slow force after it
+    private final Object writeLock = new Object();
+    private final Object forceLock = new Object();
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+    // sequence of the last record, carried on from the records replayed and from what storage applied
+    private long appended = 0L;
+    private long written = 0L;
+    private volatile long synced = 0L;
+
+    private FileChannel channel;
+    private long segment;
+    private boolean segmentDirty = false;
+    // rotated out, written but maybe not forced yet; the next sync forces and closes them
+    private final List<FileChannel> retired = new ArrayList<>();
+
+    private final ScheduledExecutorService syncer;
+
+    public WriteJournal(File directory, FsyncPolicy policy, long fsyncIntervalMs, Logger logger) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.logger = logger;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+
+        this.id = readId();
+
+        // a snapshot a crash cut short, the segments it was to replace are all still there
+        File[] unfinished = directory.listFiles((d, name) -> name.endsWith(SNAPSHOT_SUFFIX));
+        if (unfinished != null) {
+            for (File f : unfinished) f.delete();
+        }
+
+        List<Long> existing = listSegments();
+        this.segment = existing.isEmpty() ? 1L : existing.get(existing.size() - 1) + 1L;
+        this.channel = open(segment);
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            this.syncer = null;
+        } else {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "YOV-Journal");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = Math.max(1L, fsyncIntervalMs);
+            syncer.scheduleWithFixedDelay(this::syncSafe, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // records of a key up to the sequence applied(key) returns are already in storage and left out;
+    // a key's records reach storage in sequence order, sets and deletes included
+    public int replay(ToLongFunction<String> applied, BiConsumer<String, String> apply, DeltaConsumer applyDelta) {
+        int count = 0;
+        long[] last = {0L, 0L};
+        List<Long> segments = listSegments();
+        segments.removeIf(seq -> seq >= segment);
+        int from = 0;
+        for (int i = segments.size() - 1; i > 0; i--) {
+            if (isSnapshot(segmentFile(segments.get(i)))) {
+                from = i;
+                break;
+            }
+        }
+        for (long seq : segments.subList(from, segments.size())) {
+            count += replaySegment(segmentFile(seq), applied, apply, applyDelta, last);
+        }
+        advanceSequence(last[0]);
+        if (last[1] > 0) logger.info("Left out " + last[1] + " journaled writes storage already has.");
+        return count;
+    }
+
+    // new records must sort after every sequence storage has seen from this journal
+    public void advanceSequence(long seq) {
+        synchronized (appendLock) {
+            if (appended < seq) appended = seq;
+        }
+    }
+
+    public long getSequence() {
+        synchronized (appendLock) {
+            return appended;
+        }
+    }
+
+    public void appendSet(String key, String value) throws IOException {
+        append(OP_SET, key, value);
+    }
+
+    public void appendDelete(String key) throws IOException {
+        append(OP_DELETE, key, null);
+    }
+
+    // the sequence goes to storage with the delta, a replay leaves the record out once it is there
+    long appendDelta(String key, DeltaSum delta) throws IOException {
+        return append(OP_DELTA, key, delta.toString());
+    }
+
+    private long append(byte op, String key, String value) throws IOException {
+        long seq;
+        synchronized (appendLock) {
+            seq = appended + 1;
+            frame(buffer, encode(op, seq, key, value));
+            appended = seq;
+        }
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            sync(seq);
+        }
+        return seq;
+    }
+
+    // group commit: whoever gets the force lock writes and forces everything appended so far
+    private void sync(long upTo) throws IOException {
+        synchronized (forceLock) {
+            if (synced >= upTo) return;
+
+            long target;
+            List<FileChannel> toForce = new ArrayList<>(2);
+            List<FileChannel> toClose;
+            synchronized (writeLock) {
+                writeBuffered();
+                target = written;
+                toClose = new ArrayList<>(retired);
+                retired.clear();
+                toForce.addAll(toClose);
+                if (segmentDirty) toForce.add(channel);
+            }
+
+            try {
+                if (policy != FsyncPolicy.NONE) {
+                    for (FileChannel ch : toForce) ch.force(false);
+                }
+            } finally {
+                for (FileChannel ch : toClose) ch.close();
+            }
+            synced = target;
+        }
+    }
+
+    // the caller holds writeLock
+    private void writeBuffered() throws IOException {
+        byte[] data;
+        synchronized (appendLock) {
+            data = buffer.toByteArray();
+            buffer = new ByteArrayOutputStream(4096);
+            written = appended;
+        }
+
+        if (data.length > 0) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) channel.write(buf);
+            segmentDirty = true;
+        }
+    }
+
+    private void syncSafe() {
+        try {
+            sync();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to sync write journal", e);
+        }
+    }
+
+    // only writes out and swaps the channel, so callers can hold their own locks around it;
+    // the old segment is forced by the next sync, which sync() right after does without them
+    public long rotate() throws IOException {
+        synchronized (writeLock) {
+            writeBuffered();
+            if (!segmentDirty) return segment;
+
+            retired.add(channel);
+            segment++;
+            channel = open(segment);
+            segmentDirty = false;
+            return segment;
+        }
+    }
+
+    // like rotate, but the segment after the current one is left for writeSnapshot and appends go to the one after it
+    public long reserveSnapshot() throws IOException {
+        synchronized (writeLock) {
+            writeBuffered();
+            retired.add(channel);
+            segment += 2;
+            channel = open(segment);
+            segmentDirty = false;
+            return segment - 1;
+        }
+    }
+
+    // written aside and renamed once forced, so a replay finds either the whole snapshot or the segments before it
+    public void writeSnapshot(long seq, Snapshot snapshot) throws IOException {
+        File target = segmentFile(seq);
+        File written = new File(directory, target.getName() + SNAPSHOT_SUFFIX);
+        try (FileChannel ch = FileChannel.open(written.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(snapshot.bytes.toByteArray());
+            while (buf.hasRemaining()) ch.write(buf);
+            if (policy != FsyncPolicy.NONE) ch.force(false);
+        }
+        Files.move(written.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void sync() throws IOException {
+        long upTo;
+        synchronized (appendLock) {
+            upTo = appended;
+        }
+        sync(upTo);
+    }
+
+    public void truncateBefore(long seq) {
+        for (long s : listSegments()) {
+            if (s >= seq) break;
+            File file = segmentFile(s);
+            if (!file.delete() && file.exists()) {
+                logger.warning("Could not delete journal segment " + file.getName());
+            }
+        }
+    }
+
+    public void close() {
+        if (syncer != null) syncer.shutdownNow();
+        synchronized (forceLock) {
+            try {
+                sync();
+                synchronized (writeLock) {
+                    channel.force(false);
+                    channel.close();
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close write journal", e);
+            }
+        }
+    }
+
+    // records keep the sequences they were first appended with
+    public static final class Snapshot {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+
+        public Snapshot() throws IOException {
+            frame(bytes, encode(OP_SNAPSHOT, 0L, "", null));
+        }
+
+        public void set(String key, String value, long seq) throws IOException {
+            frame(bytes, encode(OP_SET, seq, key, value));
+        }
+
+        public void delete(String key, long seq) throws IOException {
+            frame(bytes, encode(OP_DELETE, seq, key, null));
+        }
+
+        public void delta(String key, BigDecimal delta, long seq) throws IOException {
+            frame(bytes, encode(OP_DELTA, seq, key, delta.toPlainString()));
+        }
+    }
+
+    private String readId() throws IOException {
+        File file = new File(directory, ID_FILE);
+        if (file.isFile()) {
+            String stored = Files.readString(file.toPath(), StandardCharsets.UTF_8).trim();
+            if (!stored.isEmpty()) return stored;
+        }
+        String created = UUID.randomUUID().toString();
+        Files.writeString(file.toPath(), created, StandardCharsets.UTF_8);
+        return created;
+    }
+
+    private FileChannel open(long seq) throws IOException {
+        return FileChannel.open(segmentFile(seq).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(directory, String.format(Locale.ROOT, "%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() {
+        List<Long> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) return result;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                result.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException ignored) {}
+        }
+        result.sort(null);
+        return result;
+    }
+
+    private int replaySegment(File file, ToLongFunction<String> applied, BiConsumer<String, String> apply,
+                              DeltaConsumer applyDelta, long[] last) {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0) break;
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warning("Journal segment " + file.getName() + " has a corrupt record, ignoring the rest of it.");
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = record.readByte();
+                long seq = record.readLong();
+                String key = readString(record);
+                String value = hasValue(op) ? readString(record) : null;
+                last[0] = Math.max(last[0], seq);
+                if (op == OP_SNAPSHOT) continue;
+
+                if (seq <= applied.applyAsLong(key)) {
+                    last[1]++;
+                    continue;
+                }
+                if (op == OP_DELTA) applyDelta.accept(key, value, seq);
+                else apply.accept(key, value);
+                count++;
+            }
+        } catch (EOFException e) {
+            // torn tail from a crash mid-write
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to replay journal segment " + file.getName(), e);
+        }
+        return count;
+    }
+
+    private boolean isSnapshot(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.readInt();
+            in.readInt();
+            return in.readByte() == OP_SNAPSHOT;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasValue(byte op) {
+        return op == OP_SET || op == OP_DELTA;
+    }
+
+    private static void frame(ByteArrayOutputStream to, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        DataOutputStream out = new DataOutputStream(to);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    private static byte[] encode(byte op, long seq, String key, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + key.length() + (value != null ? value.length() : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeLong(seq);
+        writeString(out, key);
+        if (hasValue(op)) writeString(out, value);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,10 @@
+package yov.async;
+
+public enum WritePriority {
+    // command and player driven writes, flushed first and within the latency target
+    INTERACTIVE,
+    // everything else, the default
+    BACKGROUND,
+    // mass writes such as /yov userclear or default variables, rate limited
+    BULK
+}
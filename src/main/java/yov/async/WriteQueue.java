@@ -1,22 +1,67 @@
 package yov.async;
 
 import yov.storage.BatchCapable;
+import yov.storage.DeltaLedger;
 import yov.storage.StorageBackend;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class WriteQueue {
 
+    public record Settings(long flushIntervalMs,
+                           long minFlushIntervalMs,
+                           long maxFlushIntervalMs,
+                           int maxBatchSize,
+                           int flushThreshold,
+                           boolean skipUnchanged,
+                           int writerLanes,
+                           int maxPending,
+                           long interactiveLatencyMs,
+                           int bulkKeysPerSecond) {
+    }
+
     private final StorageBackend backend;
+    private final Logger logger;
+    private final WriteJournal journal;
+    private final SpillFile spill;
+    private final Settings settings;
 
     private static final String TOMBSTONE = "__DELETE__";
 
     private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<>();
+    // add/rem amounts summed per key; only touched inside pending.compute for that key
+    private final ConcurrentHashMap<String, DeltaSum> pendingDeltas = new ConcurrentHashMap<>();
+    // highest journal sequence summed into each queued delta; kept in step with pendingDeltas
+    private final Map<String, Long> deltaSeqs = new ConcurrentHashMap<>();
+    private volatile BiConsumer<String, String> deltaListener;
+    // taken off the queue by a flush that has not committed yet
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    // keys without a mark are BACKGROUND; a key keeps the most urgent class of its queued writes
+    private final Set<String> interactiveKeys = ConcurrentHashMap.newKeySet();
+    private final Set<String> bulkKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean interactiveFlushQueued = new AtomicBoolean(false);
+    private double bulkTokens = 0.0;
+    private long bulkRefillAt = System.nanoTime();
+
+    // once anything spilled, every later write spills too until the file is drained, so order is kept
+    private volatile boolean spilling = false;
+    // keys with a write in the spill file; kept until the file is fully drained
+    private final Set<String> spilledKeys = ConcurrentHashMap.newKeySet();
 
     private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread t = new Thread(r, "YOV-WriteQueue");
@@ -26,29 +71,409 @@ public class WriteQueue {
 
     private final AtomicBoolean flushing = new AtomicBoolean(false);
 
-    public WriteQueue(StorageBackend backend) {
+    // keys are hashed onto lanes, each lane is one concurrent write transaction on the I/O executor
+    private final IoExecutor io;
+    private final int lanes;
+    private final AtomicBoolean earlyFlushQueued = new AtomicBoolean(false);
+
+    // exponentially weighted commit latency, drives the next flush delay
+    private volatile double commitLatencyMs = 0.0;
+
+    // last value this server wrote per key, to skip writes that would not change anything
+    private static final int MAX_PERSISTED_ENTRIES = 65_536;
+    private final Map<String, String> persisted = new ConcurrentHashMap<>();
+
+    // enqueue appends to the journal and pending together; flush rotates the journal and snapshots pending together
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+
+    private static final long JOURNAL_COMPACT_INTERVAL_MS = 30_000L;
+    private volatile long journalCompactedAt = System.currentTimeMillis();
+
+    // storage recording which journaled deltas it applied, so a replay adds each only once
+    private final DeltaLedger ledger;
+    private static final long LEDGER_PRUNE_INTERVAL_MS = 600_000L;
+    private long ledgerPrunedAt = 0L;
+    // truncated at the last prune; pruned at the next, so a segment deleted just before a crash still finds its rows
+    private long ledgerPruneSeq = 0L;
+
+    private static final long MIN_RETRY_DELAY_MS = 200L;
+    private static final long MAX_RETRY_DELAY_MS = 10_000L;
+    private volatile long retryDelayMs = 0L;
+    private volatile long nextAttemptAt = 0L;
+
+    public WriteQueue(StorageBackend backend, Logger logger, IoExecutor io, WriteJournal journal, SpillFile spill, Settings settings) throws Exception {
         this.backend = backend;
-        executor.scheduleAtFixedRate(this::flushSafe, 200, 200, TimeUnit.MILLISECONDS);
+        this.logger = logger;
+        this.journal = journal;
+        this.spill = spill;
+        this.settings = settings;
+
+        int laneCount = Math.max(1, Math.min(settings.writerLanes(), backend.getMaxWriteConcurrency()));
+        this.io = io;
+        this.lanes = laneCount > 1 ? laneCount : 0;
+
+        this.ledger = journal != null && backend instanceof DeltaLedger l ? l : null;
+
+        if (journal != null) {
+            Map<String, Long> applied = ledger != null ? ledger.readAppliedSequences(journal.getId()) : Map.of();
+            for (long seq : applied.values()) journal.advanceSequence(seq);
+
+            int replayed = journal.replay(
+                    key -> applied.getOrDefault(key, 0L),
+                    (key, value) -> admit(key, value != null ? value : TOMBSTONE, null, 0L),
+                    (key, delta, seq) -> {
+                        BigDecimal d = parseDelta(key, delta);
+                        if (d != null) admit(key, null, new DeltaSum(d), seq);
+                    }
+            );
+            if (replayed > 0) {
+                logger.info("Replayed " + replayed + " journaled writes (" + getPendingCount() + " keys).");
+            } else {
+                try {
+                    journal.truncateBefore(journal.rotate());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to clean up write journal", e);
+                }
+            }
+        }
+
+        scheduleNext(settings.flushIntervalMs());
+    }
+
+    private void scheduleNext(long delayMs) {
+        try {
+            executor.schedule(this::tick, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {}
+    }
+
+    private void tick() {
+        onIo(() -> {
+            flushSafe();
+            scheduleNext(nextDelay());
+        });
+    }
+
+    // the scheduler thread only keeps time, the blocking flush itself runs on the I/O executor
+    private void onIo(Runnable task) {
+        try {
+            io.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    // slow commits stretch the interval so each transaction carries more keys; a backlog shortens it
+    private long nextDelay() {
+        if (getPendingCount() >= settings.flushThreshold()) {
+            return settings.minFlushIntervalMs();
+        }
+        long delay = Math.max(settings.flushIntervalMs(), (long) (commitLatencyMs * 2));
+        return Math.max(settings.minFlushIntervalMs(), Math.min(delay, settings.maxFlushIntervalMs()));
+    }
+
+    private void requestEarlyFlush() {
+        if (getPendingCount() < settings.flushThreshold() || !earlyFlushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> onIo(() -> {
+                earlyFlushQueued.set(false);
+                flushSafe();
+            }));
+        } catch (RejectedExecutionException e) {
+            earlyFlushQueued.set(false);
+        }
     }
 
     public void enqueueSet(String key, String value) {
-        pending.put(key, value);
+        enqueueSet(key, value, WritePriority.BACKGROUND);
+    }
+
+    public void enqueueSet(String key, String value, WritePriority priority) {
+        mark(key, priority);
+        enqueue(key, value);
+        afterEnqueue(priority);
     }
 
     public void enqueueDelete(String key) {
-        pending.put(key, TOMBSTONE);
+        enqueueDelete(key, WritePriority.BACKGROUND);
+    }
+
+    public void enqueueDelete(String key, WritePriority priority) {
+        mark(key, priority);
+        enqueue(key, TOMBSTONE);
+        afterEnqueue(priority);
+    }
+
+    public void enqueueDelta(String key, BigDecimal delta) {
+        enqueueDelta(key, delta, WritePriority.BACKGROUND);
+    }
+
+    public void enqueueDelta(String key, BigDecimal delta, WritePriority priority) {
+        mark(key, priority);
+        enqueueAdd(key, new DeltaSum(delta));
+        afterEnqueue(priority);
+    }
+
+    // an add/rem in 5-decimal fixed point, as the cache keeps it
+    public void enqueueDelta(String key, long unscaled, WritePriority priority) {
+        mark(key, priority);
+        enqueueAdd(key, new DeltaSum(unscaled));
+        afterEnqueue(priority);
+    }
+
+    private void mark(String key, WritePriority priority) {
+        switch (priority) {
+            case INTERACTIVE -> {
+                interactiveKeys.add(key);
+                bulkKeys.remove(key);
+            }
+            case BACKGROUND -> bulkKeys.remove(key);
+            case BULK -> {
+                if (!interactiveKeys.contains(key) && !isPending(key)) bulkKeys.add(key);
+            }
+        }
+    }
+
+    private void afterEnqueue(WritePriority priority) {
+        if (priority != WritePriority.INTERACTIVE || !interactiveFlushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.schedule(() -> onIo(() -> {
+                interactiveFlushQueued.set(false);
+                flushInteractiveSafe();
+            }), settings.interactiveLatencyMs(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            interactiveFlushQueued.set(false);
+        }
+    }
+
+    private void enqueueAdd(String key, DeltaSum delta) {
+        if (journal == null) {
+            admit(key, null, delta, 0L);
+            requestEarlyFlush();
+            return;
+        }
+
+        journalLock.readLock().lock();
+        long seq = 0L;
+        try {
+            seq = journal.appendDelta(key, delta);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to journal write for '" + key + "'", e);
+        } finally {
+            admit(key, null, delta, seq);
+            journalLock.readLock().unlock();
+        }
+        requestEarlyFlush();
+    }
+
+    private void enqueue(String key, String value) {
+        if (journal == null) {
+            admit(key, value, null, 0L);
+            requestEarlyFlush();
+            return;
+        }
+
+        journalLock.readLock().lock();
+        try {
+            if (TOMBSTONE.equals(value)) journal.appendDelete(key);
+            else journal.appendSet(key, value);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to journal write for '" + key + "'", e);
+        } finally {
+            admit(key, value, null, 0L);
+            journalLock.readLock().unlock();
+        }
+        requestEarlyFlush();
+    }
+
+    // a set or delete, or a delta with its journal sequence (0 when it has none)
+    private void admit(String key, String value, DeltaSum delta, long seq) {
+        if (spill == null || (!spilling && getPendingCount() < settings.maxPending())) {
+            putPending(key, value, delta, seq);
+            return;
+        }
+
+        synchronized (spill) {
+            if (!spilling && getPendingCount() < settings.maxPending()) {
+                putPending(key, value, delta, seq);
+                return;
+            }
+
+            if (!spilling) {
+                spilling = true;
+                logger.warning("Write queue is full (" + settings.maxPending() + " keys), spilling further writes to disk.");
+            }
+
+            try {
+                spilledKeys.add(key);
+                if (delta != null) spill.appendDelta(key, delta.toString(), seq);
+                else if (TOMBSTONE.equals(value)) spill.appendDelete(key);
+                else spill.appendSet(key, value);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to spill write for '" + key + "', keeping it in memory", e);
+                putPending(key, value, delta, seq);
+            }
+        }
+    }
+
+    private void putPending(String key, String value, DeltaSum delta, long seq) {
+        if (delta != null) putDelta(key, delta, seq);
+        else putValue(key, value);
+    }
+
+    private void drainSpill() {
+        if (!spilling) return;
+
+        synchronized (spill) {
+            int room = settings.maxPending() - getPendingCount();
+            try {
+                spill.drain(room,
+                        (key, value) -> putValue(key, value != null ? value : TOMBSTONE),
+                        (key, delta, seq) -> {
+                            BigDecimal d = parseDelta(key, delta);
+                            if (d != null) putDelta(key, new DeltaSum(d), seq);
+                        });
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to read spilled writes back", e);
+                return;
+            }
+
+            if (spill.isEmpty()) {
+                spilling = false;
+                spilledKeys.clear();
+                logger.info("Spilled writes drained back into the write queue.");
+            }
+        }
+    }
+
+    // an absolute write replaces any delta queued before it
+    private void putValue(String key, String value) {
+        pending.compute(key, (k, old) -> {
+            pendingDeltas.remove(k);
+            deltaSeqs.remove(k);
+            return value;
+        });
+    }
+
+    // a delta after a queued absolute write is folded into it, otherwise summed with earlier deltas
+    private void putDelta(String key, DeltaSum delta, long seq) {
+        pending.compute(key, (k, old) -> {
+            if (old == null) {
+                pendingDeltas.merge(k, delta, DeltaSum::add);
+                if (seq > 0L) deltaSeqs.merge(k, seq, Math::max);
+                return null;
+            }
+            String folded = StorageBackend.addDelta(TOMBSTONE.equals(old) ? null : old, delta.toBigDecimal());
+            return folded != null ? folded : old;
+        });
+    }
+
+    private BigDecimal parseDelta(String key, String delta) {
+        try {
+            return new BigDecimal(delta);
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring stored delta '" + delta + "' for '" + key + "'");
+            return null;
+        }
+    }
+
+    public void setDeltaListener(BiConsumer<String, String> deltaListener) {
+        this.deltaListener = deltaListener;
+    }
+
+    // a value read back from storage that differs from what we wrote means someone else changed it
+    public void observeStored(String key, String value) {
+        if (!settings.skipUnchanged() || key == null) return;
+        String stored = value != null ? value : TOMBSTONE;
+        persisted.computeIfPresent(key, (k, last) -> last.equals(stored) ? last : null);
+    }
+
+    public void forEachPending(BiConsumer<String, String> action) {
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            action.accept(e.getKey(), TOMBSTONE.equals(e.getValue()) ? null : e.getValue());
+        }
+    }
+
+    public boolean isPending(String key) {
+        return key != null && (pending.containsKey(key) || pendingDeltas.containsKey(key)
+                || inFlight.contains(key) || spilledKeys.contains(key));
+    }
+
+    // a set or delete is queued, so a write made around the queue would be overwritten by it
+    public boolean hasPendingValue(String key) {
+        return key != null && pending.containsKey(key);
+    }
+
+    // for writes that go to storage around the queue: the queue is written out and the journal
+    // reduced to what is still queued, so a replay cannot put back values older than the task;
+    // no flush runs meanwhile, so none can write a value it took from the queue before it
+    public <T> T runExclusive(Callable<T> task) throws Exception {
+        awaitFlushSlot();
+        try {
+            flushHeld(true);
+            if (spilling) throw new IllegalStateException("Queued writes are spilled to disk");
+            if (journal != null) compactJournal();
+            return task.call();
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    // storage was changed around the queue, so what we last wrote there says nothing anymore
+    public void forgetPersisted(Predicate<String> keys) {
+        persisted.keySet().removeIf(keys);
     }
 
     private void flushSafe() {
+        if (retryDelayMs > 0 && System.currentTimeMillis() < nextAttemptAt) {
+            return;
+        }
+
         try {
             flush();
         } catch (Exception e) {
-            e.printStackTrace();
+            if (retryDelayMs == 0) {
+                logger.log(Level.WARNING, "Failed to write " + getPendingCount() + " queued variables, retrying", e);
+            }
+        }
+    }
+
+    private void flushInteractiveSafe() {
+        if (interactiveKeys.isEmpty() || (retryDelayMs > 0 && System.currentTimeMillis() < nextAttemptAt)) {
+            return;
+        }
+        if (!flushing.compareAndSet(false, true)) {
+            afterEnqueue(WritePriority.INTERACTIVE);
+            return;
+        }
+
+        try {
+            List<String> keys = new ArrayList<>();
+            List<String> deltaKeys = new ArrayList<>();
+            for (String key : interactiveKeys) {
+                if (pendingDeltas.containsKey(key)) deltaKeys.add(key);
+                if (pending.containsKey(key)) keys.add(key);
+                if (!isPending(key)) interactiveKeys.remove(key);
+            }
+            flushAll(deltaKeys, keys);
+        } catch (Exception e) {
+            if (retryDelayMs == 0) {
+                logger.log(Level.WARNING, "Failed to write queued variables, retrying", e);
+            }
+        } finally {
+            flushing.set(false);
         }
     }
 
     public void flush() throws Exception {
-        if (pending.isEmpty()) {
+        flush(false);
+    }
+
+    private void flush(boolean unthrottled) throws Exception {
+        if (pending.isEmpty() && pendingDeltas.isEmpty() && !spilling) {
             return;
         }
 
@@ -57,101 +482,446 @@ public class WriteQueue {
         }
 
         try {
-            Map<String, String> batch = new HashMap<>(pending);
+            flushHeld(unthrottled);
+        } finally {
+            flushing.set(false);
+        }
+    }
 
-            for (Map.Entry<String, String> entry : batch.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                pending.remove(key, value);
-            }
+    // the caller holds the flushing flag
+    private void flushHeld(boolean unthrottled) throws Exception {
+        if (pending.isEmpty() && pendingDeltas.isEmpty() && !spilling) {
+            return;
+        }
 
-            if (batch.isEmpty()) {
-                return;
+        drainSpill();
+
+        List<String> keys;
+        List<String> deltaKeys;
+        long segment = 0L;
+        long rotatedSeq = 0L;
+        boolean spillEmpty = true;
+
+        if (journal != null) {
+            journalLock.writeLock().lock();
+            try {
+                segment = journal.rotate();
+                rotatedSeq = journal.getSequence();
+                spillEmpty = !spilling;
+                keys = new ArrayList<>(pending.keySet());
+                deltaKeys = new ArrayList<>(pendingDeltas.keySet());
+            } finally {
+                journalLock.writeLock().unlock();
             }
+            // the force of the rotated-out segment, outside the lock enqueues wait for
+            journal.sync();
+        } else {
+            keys = new ArrayList<>(pending.keySet());
+            deltaKeys = new ArrayList<>(pendingDeltas.keySet());
+        }
 
-            if (backend instanceof BatchCapable batchCapable) {
-                batchCapable.beginBatch();
-                try {
-                    for (Map.Entry<String, String> entry : batch.entrySet()) {
-                        String key = entry.getKey();
-                        String val = entry.getValue();
-
-                        if (TOMBSTONE.equals(val)) {
-                            backend.delete(key);
-                        } else {
-                            backend.set(key, val);
-                        }
-                    }
-                    batchCapable.endBatch();
-                } catch (Exception e) {
-                    try {
-                        batchCapable.endBatch();
-                    } catch (Exception ignored) {}
-                    throw e;
-                }
-                return;
+        boolean complete = flushByPriority(deltaKeys, keys, unthrottled);
+
+        if (retryDelayMs > 0) {
+            logger.info("Queued variables written after retrying.");
+            retryDelayMs = 0L;
+        }
+
+        // spilled writes are still only on disk in the spill file, the journal keeps covering them
+        if (journal != null && spillEmpty) {
+            if (complete) {
+                journal.truncateBefore(segment);
+                journalCompactedAt = System.currentTimeMillis();
+                pruneLedger(rotatedSeq);
+            } else if (System.currentTimeMillis() - journalCompactedAt >= JOURNAL_COMPACT_INTERVAL_MS) {
+                compactJournal();
             }
+        }
+    }
+
+    // every record up to seq was in a segment that is deleted now
+    private void pruneLedger(long seq) {
+        if (ledger == null || System.currentTimeMillis() - ledgerPrunedAt < LEDGER_PRUNE_INTERVAL_MS) return;
+        ledgerPrunedAt = System.currentTimeMillis();
+        long upTo = ledgerPruneSeq;
+        ledgerPruneSeq = seq;
+        if (upTo == 0L) return;
+        try {
+            ledger.pruneAppliedSequences(journal.getId(), upTo);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to prune applied journal sequences", e);
+        }
+    }
 
-            Connection conn;
+    // held-back bulk keys keep every older segment alive, so the queue is written out anew and the rest dropped;
+    // only the copy is taken under the lock, enqueues go on into the segment after the snapshot meanwhile
+    private void compactJournal() throws IOException {
+        long segment;
+        long seq;
+        Map<String, String> sets;
+        Map<String, BigDecimal> deltas;
+        Map<String, Long> seqs;
+        journalLock.writeLock().lock();
+        try {
+            if (spilling) return;
+
+            segment = journal.reserveSnapshot();
+            seq = journal.getSequence();
+            sets = new HashMap<>(pending);
+            deltas = new HashMap<>(pendingDeltas.size() * 4 / 3 + 1);
+            for (Map.Entry<String, DeltaSum> e : pendingDeltas.entrySet()) deltas.put(e.getKey(), e.getValue().toBigDecimal());
+            seqs = new HashMap<>(deltaSeqs);
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+
+        // a delta queued next to an absolute write is the older of the two; every copied record sorts before
+        // anything appended since, and deltas keep the sequence storage records once it applies them
+        WriteJournal.Snapshot snapshot = new WriteJournal.Snapshot();
+        for (Map.Entry<String, BigDecimal> e : deltas.entrySet()) {
+            snapshot.delta(e.getKey(), e.getValue(), seqs.getOrDefault(e.getKey(), 0L));
+        }
+        for (Map.Entry<String, String> e : sets.entrySet()) {
+            if (TOMBSTONE.equals(e.getValue())) snapshot.delete(e.getKey(), seq);
+            else snapshot.set(e.getKey(), e.getValue(), seq);
+        }
+        journal.writeSnapshot(segment, snapshot);
+        journal.sync();
+        journal.truncateBefore(segment);
+        journalCompactedAt = System.currentTimeMillis();
+    }
+
+    // interactive keys go first, bulk keys last and only as far as the rate limit allows;
+    // returns false when bulk keys were held back
+    private boolean flushByPriority(List<String> deltaKeys, List<String> keys, boolean unthrottled) throws Exception {
+        List<String> interactiveDeltas = new ArrayList<>();
+        List<String> interactive = new ArrayList<>();
+        List<String> bulkDeltas = new ArrayList<>();
+        List<String> bulk = new ArrayList<>();
+        List<String> backgroundDeltas = new ArrayList<>();
+        List<String> background = new ArrayList<>();
+
+        for (String key : deltaKeys) {
+            (interactiveKeys.contains(key) ? interactiveDeltas : bulkKeys.contains(key) ? bulkDeltas : backgroundDeltas).add(key);
+        }
+        for (String key : keys) {
+            (interactiveKeys.contains(key) ? interactive : bulkKeys.contains(key) ? bulk : background).add(key);
+        }
+
+        flushAll(interactiveDeltas, interactive);
+        interactiveKeys.removeIf(key -> !isPending(key));
+        flushAll(backgroundDeltas, background);
+
+        int total = bulkDeltas.size() + bulk.size();
+        if (total == 0) return true;
+
+        int budget = unthrottled ? total : takeBulkBudget(total);
+        if (budget <= 0) return false;
+
+        List<String> d = bulkDeltas.subList(0, Math.min(bulkDeltas.size(), budget));
+        List<String> k = bulk.subList(0, Math.min(bulk.size(), budget - d.size()));
+        flushAll(d, k);
+        bulkKeys.removeIf(key -> !isPending(key));
+        return d.size() + k.size() == total;
+    }
+
+    private int takeBulkBudget(int wanted) {
+        int rate = settings.bulkKeysPerSecond();
+        if (rate <= 0) return wanted;
+
+        long now = System.nanoTime();
+        bulkTokens = Math.min(rate, bulkTokens + (now - bulkRefillAt) / 1_000_000_000.0 * rate);
+        bulkRefillAt = now;
+
+        int granted = (int) Math.min(wanted, bulkTokens);
+        bulkTokens -= granted;
+        return granted;
+    }
+
+    private void flushAll(List<String> deltaKeys, List<String> keys) throws Exception {
+        if (deltaKeys.isEmpty() && keys.isEmpty()) return;
+
+        if (lanes == 0) {
+            flushKeys(deltaKeys, keys);
+        } else {
+            flushLanes(deltaKeys, keys);
+        }
+    }
+
+    // a delta still queued next to an absolute write for the same key is the older of the two
+    private void flushKeys(List<String> deltaKeys, List<String> keys) throws Exception {
+        int batchSize = Math.max(1, settings.maxBatchSize());
+        for (int from = 0; from < deltaKeys.size(); from += batchSize) {
+            flushDeltaChunk(deltaKeys.subList(from, Math.min(from + batchSize, deltaKeys.size())));
+        }
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            flushChunk(keys.subList(from, Math.min(from + batchSize, keys.size())));
+        }
+    }
+
+    private void flushLanes(List<String> deltaKeys, List<String> keys) throws Exception {
+        List<List<String>> laneDeltaKeys = partition(deltaKeys);
+        List<List<String>> laneKeys = partition(keys);
+
+        List<Future<Void>> futures = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            List<String> d = laneDeltaKeys.get(i);
+            List<String> k = laneKeys.get(i);
+            if (d.isEmpty() && k.isEmpty()) continue;
+
+            futures.add(io.submit(() -> {
+                flushKeys(d, k);
+                return null;
+            }));
+        }
+
+        // every lane finishes its own keys even if another lane failed
+        Exception failure = null;
+        for (Future<Void> future : futures) {
             try {
-                conn = backend.getConnection();
-            } catch (Exception e) {
-                conn = null;
-            }
-
-            if (conn != null) {
-                try (Connection c = conn;
-                     PreparedStatement insertPS = c.prepareStatement(
-                             "INSERT INTO `variables` (`key`, `value`) VALUES (?, ?) " +
-                                     "ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)"
-                     );
-                     PreparedStatement deletePS = c.prepareStatement(
-                             "DELETE FROM `variables` WHERE `key` = ?"
-                     )) {
-
-                    for (Map.Entry<String, String> entry : batch.entrySet()) {
-                        String key = entry.getKey();
-                        String val = entry.getValue();
-
-                        if (TOMBSTONE.equals(val)) {
-                            deletePS.setString(1, key);
-                            deletePS.addBatch();
-                        } else {
-                            insertPS.setString(1, key);
-                            insertPS.setString(2, val);
-                            insertPS.addBatch();
-                        }
-                    }
+                future.get();
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ex ? ex : e;
+                if (failure == null) failure = cause;
+                else failure.addSuppressed(cause);
+            }
+        }
+        if (failure != null) throw failure;
+    }
 
-                    insertPS.executeBatch();
-                    deletePS.executeBatch();
-                }
-                return;
+    private List<List<String>> partition(List<String> keys) {
+        List<List<String>> parts = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            parts.add(new ArrayList<>(keys.size() / lanes + 1));
+        }
+        for (String key : keys) {
+            parts.get(Math.floorMod(key.hashCode(), lanes)).add(key);
+        }
+        return parts;
+    }
+
+    private void flushChunk(List<String> keys) throws Exception {
+        Map<String, String> batch = new HashMap<>(keys.size() * 4 / 3 + 1);
+
+        for (String key : keys) {
+            String value = pending.get(key);
+            if (value == null) continue;
+
+            inFlight.add(key);
+            if (!pending.remove(key, value) || (settings.skipUnchanged() && value.equals(persisted.get(key)))) {
+                inFlight.remove(key);
+                continue;
             }
+            batch.put(key, value);
+        }
 
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            write(batch);
+        } catch (Exception e) {
+            // newer writes that arrived meanwhile win over the failed batch, newer deltas apply on top of it
             for (Map.Entry<String, String> entry : batch.entrySet()) {
-                String key = entry.getKey();
-                String val = entry.getValue();
+                pending.compute(entry.getKey(), (k, current) -> {
+                    if (current != null) return current;
+                    DeltaSum delta = pendingDeltas.remove(k);
+                    deltaSeqs.remove(k);
+                    if (delta == null) return entry.getValue();
+                    String folded = StorageBackend.addDelta(TOMBSTONE.equals(entry.getValue()) ? null : entry.getValue(), delta.toBigDecimal());
+                    return folded != null ? folded : entry.getValue();
+                });
+            }
+            inFlight.removeAll(batch.keySet());
+            scheduleRetry();
+            throw e;
+        }
+
+        recordCommit(start);
+        rememberPersisted(batch);
+        inFlight.removeAll(batch.keySet());
+    }
+
+    private void flushDeltaChunk(List<String> keys) throws Exception {
+        Map<String, BigDecimal> batch = new HashMap<>(keys.size() * 4 / 3 + 1);
+        Map<String, Long> seqs = new HashMap<>();
 
-                if (TOMBSTONE.equals(val)) {
-                    backend.delete(key);
-                } else {
-                    backend.set(key, val);
+        for (String key : keys) {
+            pending.compute(key, (k, current) -> {
+                DeltaSum delta = pendingDeltas.remove(k);
+                if (delta != null) {
+                    inFlight.add(k);
+                    batch.put(k, delta.toBigDecimal());
+                    Long seq = deltaSeqs.remove(k);
+                    if (seq != null) seqs.put(k, seq);
                 }
+                return current;
+            });
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Map<String, String> stored;
+        try {
+            stored = writeDeltas(batch, seqs);
+        } catch (Exception e) {
+            // an absolute write queued meanwhile supersedes the failed deltas
+            for (Map.Entry<String, BigDecimal> entry : batch.entrySet()) {
+                pending.compute(entry.getKey(), (k, current) -> {
+                    if (current != null) return current;
+                    pendingDeltas.merge(k, new DeltaSum(entry.getValue()), DeltaSum::add);
+                    Long seq = seqs.get(k);
+                    if (seq != null) deltaSeqs.merge(k, seq, Math::max);
+                    return null;
+                });
             }
+            inFlight.removeAll(batch.keySet());
+            scheduleRetry();
+            throw e;
+        }
 
-        } finally {
-            flushing.set(false);
+        recordCommit(start);
+        rememberPersisted(stored);
+        inFlight.removeAll(batch.keySet());
+
+        BiConsumer<String, String> listener = deltaListener;
+        if (listener != null) {
+            for (Map.Entry<String, String> entry : stored.entrySet()) {
+                listener.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // a flush already running on the I/O executor is waited for however long it takes:
+    // giving up would let shutdown interrupt it mid-write and skip the final flush
+    private void awaitFlushSlot() throws InterruptedException {
+        long warnAt = System.currentTimeMillis() + MAX_RETRY_DELAY_MS;
+        while (!flushing.compareAndSet(false, true)) {
+            if (System.currentTimeMillis() >= warnAt) {
+                logger.warning("Still waiting for a running write to storage to finish (" + getPendingCount() + " queued variables).");
+                warnAt += MAX_RETRY_DELAY_MS;
+            }
+            Thread.sleep(5L);
         }
     }
 
+    private void scheduleRetry() {
+        retryDelayMs = retryDelayMs == 0 ? MIN_RETRY_DELAY_MS : Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        nextAttemptAt = System.currentTimeMillis() + retryDelayMs;
+    }
+
+    private void recordCommit(long startNanos) {
+        double latency = (System.nanoTime() - startNanos) / 1_000_000.0;
+        commitLatencyMs = commitLatencyMs == 0.0 ? latency : commitLatencyMs * 0.8 + latency * 0.2;
+    }
+
+    private void rememberPersisted(Map<String, String> written) {
+        if (!settings.skipUnchanged()) return;
+        if (persisted.size() + written.size() > MAX_PERSISTED_ENTRIES) persisted.clear();
+        persisted.putAll(written);
+    }
+
+    public int getPendingCount() {
+        return pending.size() + pendingDeltas.size();
+    }
+
+    public long getSpilledCount() {
+        return spill != null ? spill.getRecordCount() : 0L;
+    }
+
+    public long getSpilledBytes() {
+        return spill != null ? spill.getSizeBytes() : 0L;
+    }
+
+    public double getCommitLatencyMs() {
+        return commitLatencyMs;
+    }
+
+    private void write(Map<String, String> batch) throws Exception {
+        if (backend instanceof BatchCapable batchCapable) {
+            batchCapable.beginBatch();
+            try {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    String key = entry.getKey();
+                    String val = entry.getValue();
+
+                    if (TOMBSTONE.equals(val)) {
+                        backend.delete(key);
+                    } else {
+                        backend.set(key, val);
+                    }
+                }
+                batchCapable.endBatch();
+            } catch (Exception e) {
+                try {
+                    batchCapable.endBatch();
+                } catch (Exception ignored) {}
+                throw e;
+            }
+            return;
+        }
+
+        Map<String, String> changes = new HashMap<>(batch.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            changes.put(entry.getKey(), TOMBSTONE.equals(entry.getValue()) ? null : entry.getValue());
+        }
+        backend.writeBatch(changes);
+    }
+
+    private Map<String, String> writeDeltas(Map<String, BigDecimal> batch, Map<String, Long> seqs) throws Exception {
+        if (backend instanceof BatchCapable batchCapable) {
+            batchCapable.beginBatch();
+            try {
+                Map<String, String> stored = applyDeltas(batch, seqs);
+                batchCapable.endBatch();
+                return stored;
+            } catch (Exception e) {
+                // deltas are retried, so none of them may stay applied
+                try {
+                    batchCapable.abortBatch();
+                } catch (Exception ignored) {}
+                throw e;
+            }
+        }
+        return applyDeltas(batch, seqs);
+    }
+
+    private Map<String, String> applyDeltas(Map<String, BigDecimal> batch, Map<String, Long> seqs) throws Exception {
+        if (ledger != null) return ledger.applyDeltas(batch, journal.getId(), seqs);
+        return backend.applyDeltas(batch);
+    }
+
     public void close() {
+        executor.shutdownNow();
         try {
-            flush();
+            awaitFlushSlot();
+            try {
+                flushHeld(true);
+            } finally {
+                flushing.set(false);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while waiting for a running write to storage, " + getPendingCount() +
+                    " queued variables were not written" + (journal != null ? " and stay in the journal." : " and are lost."));
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, journal != null
+                    ? "Failed to write queued variables on shutdown, they stay in the journal"
+                    : "Failed to write queued variables on shutdown", e);
         } finally {
-            executor.shutdownNow();
+            if (spill != null) {
+                if (!spill.isEmpty()) {
+                    logger.warning(spill.getRecordCount() + " spilled writes could not be written" +
+                            (journal != null ? " and will be replayed from the journal." : " and are lost."));
+                }
+                spill.close();
+            }
+            if (journal != null) journal.close();
         }
     }
 }
@@ -0,0 +1,41 @@
+package yov.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+public class BoundedCache<V> {
+
+    private final ConcurrentHashMap<String, V> map = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public BoundedCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public V get(String key, Function<String, V> loader) {
+        V value = map.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        value = loader.apply(key);
+        if (value == null) {
+            return null;
+        }
+
+        if (map.size() >= maxSize) {
+            map.clear();
+        }
+
+        V existing = map.putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package yov.cache;
+
+import java.math.BigDecimal;
+
+public final class CachedValue {
+
+    public enum Kind {
+        LONG,
+        DECIMAL,
+        STRING
+    }
+
+    public static final int SCALE = 5;
+    public static final long SCALE_FACTOR = 100_000L;
+
+    // 18 digits always fit into a long, including the DECIMAL scale
+    private static final int MAX_DIGITS = 18;
+    private static final long[] POW10 = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L};
+
+    private final Kind kind;
+    private final long number;
+    private String text;
+
+    private CachedValue(Kind kind, long number, String text) {
+        this.kind = kind;
+        this.number = number;
+        this.text = text;
+    }
+
+    public static CachedValue of(String text) {
+        if (text == null) return null;
+
+        int len = text.length();
+        if (len == 0) return new CachedValue(Kind.STRING, 0L, text);
+
+        int i = 0;
+        boolean negative = false;
+        char first = text.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i = 1;
+        }
+
+        long value = 0L;
+        int digits = 0;
+        int fraction = -1;
+
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (fraction >= 0 && ++fraction > SCALE) {
+                    return new CachedValue(Kind.STRING, 0L, text);
+                }
+                if (++digits > MAX_DIGITS) {
+                    return new CachedValue(Kind.STRING, 0L, text);
+                }
+                value = value * 10 + (c - '0');
+            } else if (c == '.' && fraction < 0 && digits > 0) {
+                fraction = 0;
+            } else {
+                return new CachedValue(Kind.STRING, 0L, text);
+            }
+        }
+
+        if (digits == 0 || fraction == 0) {
+            return new CachedValue(Kind.STRING, 0L, text);
+        }
+
+        if (fraction < 0) {
+            return new CachedValue(Kind.LONG, negative ? -value : value, text);
+        }
+
+        if (digits - fraction + SCALE > MAX_DIGITS) {
+            return new CachedValue(Kind.STRING, 0L, text);
+        }
+
+        long unscaled = value * POW10[SCALE - fraction];
+        return new CachedValue(Kind.DECIMAL, negative ? -unscaled : unscaled, text);
+    }
+
+    public static CachedValue ofLong(long value) {
+        return new CachedValue(Kind.LONG, value, null);
+    }
+
+    public static CachedValue ofDecimal(long unscaled) {
+        if (unscaled % SCALE_FACTOR == 0) {
+            return new CachedValue(Kind.LONG, unscaled / SCALE_FACTOR, null);
+        }
+        return new CachedValue(Kind.DECIMAL, unscaled, null);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isNumeric() {
+        return kind != Kind.STRING;
+    }
+
+    public long getLong() {
+        return number;
+    }
+
+    public long getUnscaled() {
+        return kind == Kind.LONG ? number * SCALE_FACTOR : number;
+    }
+
+    public double toDouble() {
+        return switch (kind) {
+            case LONG -> (double) number;
+            case DECIMAL -> number / (double) SCALE_FACTOR;
+            case STRING -> Double.parseDouble(text);
+        };
+    }
+
+    public BigDecimal toBigDecimal() {
+        return switch (kind) {
+            case LONG -> BigDecimal.valueOf(number);
+            case DECIMAL -> BigDecimal.valueOf(number, SCALE);
+            case STRING -> new BigDecimal(text.trim().replace(',', '.'));
+        };
+    }
+
+    public String asString() {
+        String s = text;
+        if (s == null) {
+            s = kind == Kind.LONG ? Long.toString(number) : formatDecimal(number);
+            text = s;
+        }
+        return s;
+    }
+
+    static String formatDecimal(long unscaled) {
+        if (unscaled == Long.MIN_VALUE) {
+            return BigDecimal.valueOf(unscaled, SCALE).stripTrailingZeros().toPlainString();
+        }
+
+        long abs = Math.abs(unscaled);
+        long whole = abs / SCALE_FACTOR;
+        long frac = abs % SCALE_FACTOR;
+
+        StringBuilder sb = new StringBuilder(24);
+        if (unscaled < 0 && (whole != 0 || frac != 0)) sb.append('-');
+        sb.append(whole);
+
+        if (frac != 0) {
+            int width = SCALE;
+            while (frac % 10 == 0) {
+                frac /= 10;
+                width--;
+            }
+            sb.append('.');
+            String digits = Long.toString(frac);
+            for (int pad = digits.length(); pad < width; pad++) sb.append('0');
+            sb.append(digits);
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CachedValue other)) return false;
+        return asString().equals(other.asString());
+    }
+
+    @Override
+    public int hashCode() {
+        return asString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return asString();
+    }
+}
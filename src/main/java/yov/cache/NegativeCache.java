@@ -0,0 +1,105 @@
+package yov.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class NegativeCache {
+
+    private static final int HASHES = 7;
+    private static final int BITS_PER_KEY = 10;
+    private static final int MIN_BITS = 1 << 16;
+
+    // bits are only ever set, with CAS, so add needs no lock and can run inside cache.compute
+    private volatile AtomicLongArray bits = new AtomicLongArray(MIN_BITS >>> 6);
+    // the filter rebuild is filling; adds meanwhile go to both
+    private volatile AtomicLongArray building;
+
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+    private volatile long missTtlMs = 30_000L;
+    private volatile int maxMisses = 10_000;
+
+    public void configure(long missTtlMs, int maxMisses) {
+        this.missTtlMs = Math.max(0L, missTtlMs);
+        this.maxMisses = Math.max(1, maxMisses);
+    }
+
+    public synchronized void rebuild(Collection<String> keys) {
+        int wanted = (int) Math.min(1 << 30, (long) keys.size() * BITS_PER_KEY);
+        int size = Math.max(MIN_BITS, Integer.highestOneBit(Math.max(1, wanted)) << 1);
+        AtomicLongArray fresh = new AtomicLongArray(size >>> 6);
+        building = fresh;
+        for (String key : keys) {
+            set(fresh, key);
+        }
+        bits = fresh;
+        building = null;
+        misses.clear();
+    }
+
+    public void add(String key) {
+        AtomicLongArray b = bits;
+        set(b, key);
+
+        AtomicLongArray next = building;
+        if (next != null) set(next, key);
+        if (bits != b && bits != next) set(bits, key);
+
+        misses.remove(key);
+    }
+
+    public boolean mightContain(String key) {
+        AtomicLongArray b = bits;
+        int size = b.length() << 6;
+        int h1 = key.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (size - 1);
+            if ((b.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public boolean isKnownAbsent(String key, boolean filterAuthoritative) {
+        Long until = misses.get(key);
+        if (until != null) {
+            if (until > System.currentTimeMillis()) return true;
+            misses.remove(key, until);
+        }
+        return filterAuthoritative && !mightContain(key);
+    }
+
+    public void recordMiss(String key) {
+        if (missTtlMs <= 0) return;
+        if (misses.size() >= maxMisses) misses.clear();
+        misses.put(key, System.currentTimeMillis() + missTtlMs);
+    }
+
+    public int getMissCount() {
+        return misses.size();
+    }
+
+    private static void set(AtomicLongArray b, String key) {
+        int size = b.length() << 6;
+        int h1 = key.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & (size - 1);
+            long mask = 1L << bit;
+            long word = b.get(bit >>> 6);
+            while ((word & mask) == 0 && !b.weakCompareAndSetVolatile(bit >>> 6, word, word | mask)) {
+                word = b.get(bit >>> 6);
+            }
+        }
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
@@ -0,0 +1,90 @@
+package yov.cache;
+
+import yov.math.NumericEngine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// increments for one hot key, kept apart from the cache entry until folded into it
+public final class StripedCounter {
+
+    public interface Fold {
+        void accept(long sum, int rank);
+    }
+
+    public static final int NO_RANK = Integer.MAX_VALUE;
+    private static final int READ_RETRIES = 64;
+
+    // unscaled, 5 decimals like CachedValue.DECIMAL
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder adding = new LongAdder();
+    // lowest rank among the adds since the last fold, the fold is written with it
+    private final AtomicInteger rank = new AtomicInteger(NO_RANK);
+
+    // odd while a fold moves pending into the cache entry
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean retired = false;
+
+    public boolean add(long unscaled, int rank) {
+        adding.increment();
+        try {
+            if (retired) return false;
+            if (rank < this.rank.get()) this.rank.accumulateAndGet(rank, Math::min);
+            pending.add(unscaled);
+            return true;
+        } finally {
+            adding.decrement();
+        }
+    }
+
+    // base is read again if a fold ran in between, so nothing is counted twice or missed;
+    // a fold stuck on the entry lock must not stall readers, so after a few tries the sum
+    // that fold is moving may be missing from the result, never counted twice
+    public CachedValue read(Supplier<CachedValue> base) {
+        for (int i = 0; i < READ_RETRIES; i++) {
+            long v = version.get();
+            if ((v & 1L) == 0L) {
+                CachedValue value = base.get();
+                long sum = pending.sum();
+                if (version.get() == v) return combine(value, sum);
+            }
+            Thread.onSpinWait();
+        }
+        return combine(base.get(), pending.sum());
+    }
+
+    public synchronized long fold(Fold apply) {
+        version.incrementAndGet();
+        try {
+            long sum = pending.sumThenReset();
+            int r = rank.getAndSet(NO_RANK);
+            if (sum != 0L) apply.accept(sum, r);
+            return sum;
+        } finally {
+            version.incrementAndGet();
+        }
+    }
+
+    // stops taking increments and waits for adds already past the check
+    public void retire() {
+        retired = true;
+        while (adding.sum() != 0L) {
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    private static CachedValue combine(CachedValue base, long sum) {
+        if (sum == 0L) return base;
+        if (base == null) return CachedValue.ofDecimal(sum);
+        if (!base.isNumeric()) return base;
+
+        CachedValue r = NumericEngine.apply(NumericEngine.Op.ADD, base, CachedValue.ofDecimal(sum));
+        return r != null ? r : base;
+    }
+}
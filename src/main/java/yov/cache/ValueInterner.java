@@ -0,0 +1,93 @@
+package yov.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ValueInterner {
+
+    private static final int STRIPES = 16;
+    private static final int SMALL_MIN = -128;
+    private static final int SMALL_MAX = 1024;
+    private static final CachedValue[] SMALL = new CachedValue[SMALL_MAX - SMALL_MIN + 1];
+
+    static {
+        for (int i = 0; i < SMALL.length; i++) {
+            SMALL[i] = CachedValue.ofLong(SMALL_MIN + i);
+            SMALL[i].asString();
+        }
+    }
+
+    private final int maxLength;
+    @SuppressWarnings("unchecked")
+    private final Map<String, WeakReference<CachedValue>>[] pools = new Map[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+
+    public ValueInterner(int maxLength) {
+        this.maxLength = maxLength;
+        for (int i = 0; i < STRIPES; i++) {
+            pools[i] = new WeakHashMap<>();
+        }
+    }
+
+    public CachedValue intern(CachedValue value) {
+        if (value == null) return null;
+
+        String text = value.asString();
+
+        if (value.getKind() == CachedValue.Kind.LONG) {
+            long n = value.getLong();
+            if (n >= SMALL_MIN && n <= SMALL_MAX) {
+                CachedValue shared = SMALL[(int) n - SMALL_MIN];
+                if (shared.asString().equals(text)) {
+                    return shared == value ? value : recordHit(shared);
+                }
+            }
+        }
+
+        if (text.length() > maxLength) return value;
+
+        Map<String, WeakReference<CachedValue>> pool = pools[(text.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (pool) {
+            WeakReference<CachedValue> ref = pool.get(text);
+            CachedValue shared = ref != null ? ref.get() : null;
+            if (shared != null) {
+                return shared == value ? value : recordHit(shared);
+            }
+            pool.put(text, new WeakReference<>(value));
+            return value;
+        }
+    }
+
+    private CachedValue recordHit(CachedValue shared) {
+        hits.increment();
+        return shared;
+    }
+
+    public void recordKeyHit(String key) {
+        hits.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    // the small integer table exists anyway, so every holder of one of its values avoided a copy
+    boolean isPreallocated(CachedValue value) {
+        if (value.getKind() != CachedValue.Kind.LONG) return false;
+        long n = value.getLong();
+        return n >= SMALL_MIN && n <= SMALL_MAX && SMALL[(int) n - SMALL_MIN] == value;
+    }
+
+    // object header, kind, number and text reference
+    static long estimateValueSize(CachedValue value) {
+        return 32L + estimateStringSize(value.asString());
+    }
+
+    // String object plus its compact backing array
+    static long estimateStringSize(String text) {
+        return 24L + 16L + ((text.length() + 7L) & ~7L);
+    }
+}
@@ -1,63 +1,252 @@
 package yov.cache;
 
+import yov.storage.KeyPattern;
 import yov.storage.StorageBackend;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class VariableCache {
 
-    private final Map<String, String> cache = new ConcurrentHashMap<>();
+    private final Map<String, CachedValue> cache = new ConcurrentHashMap<>();
+    // first key segment ("<player>" of "<player>_<variable>") -> keys in that namespace
+    private final Map<String, Map<String, String>> namespaces = new ConcurrentHashMap<>();
+    private final Map<String, String> globalKeys = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> sortedKeys = new ConcurrentSkipListSet<>();
+    private final NegativeCache negatives = new NegativeCache();
     private final Logger logger;
 
+    private volatile ValueInterner interner;
+
     public VariableCache(Logger logger) {
         this.logger = logger;
     }
 
     public void loadFromDatabase(StorageBackend backend) {
         try {
-            int count = 0;
-            var entries = backend.getAllEntries();
-
-            for (var e : entries.entrySet()) {
-                String k = e.getKey();
-                String v = e.getValue();
-                if (k != null && v != null) {
-                    cache.put(k, v);
-                    count++;
-                }
-            }
-
+            int count = load(backend.getAllEntries());
+            negatives.rebuild(sortedKeys);
             logger.info("Loaded " + count + " variables into cache.");
         } catch (Exception e) {
             logger.log(Level.WARNING, "Error loading cache from backend", e);
         }
     }
 
-    public String compute(String key, BiFunction<String, String, String> func) {
-        return cache.compute(key, func);
+    public void loadGlobalsFromDatabase(StorageBackend backend) {
+        try {
+            int count = load(backend.getGlobalEntries());
+            negatives.rebuild(sortedKeys);
+            logger.info("Loaded " + count + " global variables into cache.");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error loading cache from backend", e);
+        }
+    }
+
+    private int load(Map<String, String> entries) {
+        int count = 0;
+        for (var e : entries.entrySet()) {
+            String k = e.getKey();
+            String v = e.getValue();
+            if (k != null && v != null) {
+                putValue(k, CachedValue.of(v));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void setInterner(ValueInterner interner) {
+        this.interner = interner;
+    }
+
+    public ValueInterner getInterner() {
+        return interner;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negatives;
+    }
+
+    public String canonicalKey(String key) {
+        if (key == null) return null;
+
+        String ns = namespaceOf(key);
+        Map<String, String> keys = ns != null ? namespaces.get(ns) : globalKeys;
+        String existing = keys != null ? keys.get(key) : null;
+        if (existing == null || existing == key) return key;
+
+        ValueInterner i = interner;
+        if (i != null) i.recordKeyHit(key);
+        return existing;
+    }
+
+    private CachedValue intern(CachedValue value) {
+        ValueInterner i = interner;
+        return i != null ? i.intern(value) : value;
+    }
+
+    public CachedValue compute(String key, BiFunction<String, CachedValue, CachedValue> func) {
+        return cache.compute(key, (k, old) -> {
+            CachedValue updated = intern(func.apply(k, old));
+            if (old == null && updated != null) index(k);
+            else if (old != null && updated == null) unindex(k);
+            return updated;
+        });
+    }
+
+    public Set<String> keySet() {
+        return cache.keySet();
+    }
+
+    public List<String> getPlayerKeys(String playerName) {
+        List<String> result = new ArrayList<>();
+        if (playerName == null || playerName.isEmpty()) return result;
+
+        String prefix = playerName.toLowerCase(Locale.ROOT) + "_";
+        Map<String, String> keys = namespaces.get(namespaceOf(prefix));
+        if (keys == null) return result;
+
+        for (String key : keys.keySet()) {
+            if (key.startsWith(prefix)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    public List<String> getKeysByPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix == null || limit <= 0) return result;
+
+        for (String key : sortedKeys.tailSet(prefix)) {
+            if (result.size() >= limit || !key.startsWith(prefix)) break;
+            result.add(key);
+        }
+        return result;
+    }
+
+    public List<String> findKeys(KeyPattern pattern) {
+        List<String> result = new ArrayList<>();
+        String prefix = pattern.getLiteralPrefix();
+        Iterable<String> candidates = prefix.isEmpty() ? sortedKeys : sortedKeys.tailSet(prefix);
+
+        for (String key : candidates) {
+            if (!key.startsWith(prefix)) break;
+            if (pattern.matches(key)) result.add(key);
+        }
+        return result;
+    }
+
+    // what deduplication saves right now: every further entry holding a shared value, and every key
+    // held elsewhere as the cache's own instance, would otherwise be a copy of its own
+    public long estimateSharedBytes(Iterable<String> heldKeys) {
+        ValueInterner i = interner;
+        if (i == null) return 0L;
+
+        Map<CachedValue, Integer> holders = new IdentityHashMap<>();
+        for (CachedValue value : cache.values()) holders.merge(value, 1, Integer::sum);
+
+        long saved = 0L;
+        for (Map.Entry<CachedValue, Integer> e : holders.entrySet()) {
+            int copies = i.isPreallocated(e.getKey()) ? e.getValue() : e.getValue() - 1;
+            saved += copies * ValueInterner.estimateValueSize(e.getKey());
+        }
+
+        for (String key : heldKeys) {
+            String ns = namespaceOf(key);
+            Map<String, String> keys = ns != null ? namespaces.get(ns) : globalKeys;
+            if (keys != null && keys.get(key) == key) saved += ValueInterner.estimateStringSize(key);
+        }
+        return saved;
+    }
+
+    public int size() {
+        return cache.size();
     }
 
-    public Map<String, String> getMap() {
-        return cache;
+    public void clear() {
+        cache.clear();
+        namespaces.clear();
+        globalKeys.clear();
+        sortedKeys.clear();
     }
 
     public String get(String key) {
+        CachedValue value = cache.get(key);
+        return value != null ? value.asString() : null;
+    }
+
+    public CachedValue getValue(String key) {
         return cache.get(key);
     }
 
     public String getOrDefault(String key, String def) {
-        return cache.getOrDefault(key, def);
+        String value = get(key);
+        return value != null ? value : def;
     }
 
     public void put(String key, String value) {
-        cache.put(key, value);
+        putValue(key, CachedValue.of(value));
+    }
+
+    public void putValue(String key, CachedValue value) {
+        CachedValue interned = intern(value);
+        cache.compute(key, (k, old) -> {
+            if (old == null) index(k);
+            return interned;
+        });
     }
 
     public void remove(String key) {
-        cache.remove(key);
+        cache.computeIfPresent(key, (k, old) -> {
+            unindex(k);
+            return null;
+        });
+    }
+
+    private static String namespaceOf(String key) {
+        int idx = key.indexOf('_');
+        return idx >= 0 ? key.substring(0, idx) : null;
+    }
+
+    private void index(String key) {
+        sortedKeys.add(key);
+        negatives.add(key);
+
+        String ns = namespaceOf(key);
+        if (ns == null) {
+            globalKeys.put(key, key);
+            return;
+        }
+
+        namespaces.compute(ns, (n, keys) -> {
+            if (keys == null) keys = new ConcurrentHashMap<>();
+            keys.put(key, key);
+            return keys;
+        });
+    }
+
+    private void unindex(String key) {
+        sortedKeys.remove(key);
+
+        String ns = namespaceOf(key);
+        if (ns == null) {
+            globalKeys.remove(key);
+            return;
+        }
+
+        namespaces.computeIfPresent(ns, (n, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
     }
 }
@@ -6,6 +6,8 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import yov.YOVPlugin;
+import yov.async.WriteQueue;
+import yov.cache.ValueInterner;
 import yov.cache.VariableCache;
 import yov.service.MigrationService;
 import yov.service.VariableService;
@@ -14,6 +16,8 @@ import java.util.*;
 
 public class YOVCommand implements TabExecutor {
 
+    private static final int KEY_COMPLETION_LIMIT = 100;
+
     private final YOVPlugin plugin;
     private final VariableService variableService;
     private final VariableCache cache;
@@ -45,9 +49,14 @@ public class YOVCommand implements TabExecutor {
                 sender.sendMessage(PREFIX + "§e/yov set <variable> <value> [player] [-s]");
                 sender.sendMessage(PREFIX + "§e/yov add <variable> <amount> [player] [-s]");
                 sender.sendMessage(PREFIX + "§e/yov rem <variable> <amount> [player] [-s]");
+                sender.sendMessage(PREFIX + "§e/yov <mul|div|min|max> <variable> <amount> [player] [-s]");
+                sender.sendMessage(PREFIX + "§e/yov clamp <variable> <min> <max> [player] [-s]");
+                sender.sendMessage(PREFIX + "§e/yov math <variable> \"<expression>\" [player] [-s]");
                 sender.sendMessage(PREFIX + "§e/yov delete <variable> [player] [-s]");
+                sender.sendMessage(PREFIX + "§e/yov bulk <set|add|rem|delete> <pattern> [value] §7- Change every variable matching * and ?");
                 sender.sendMessage(PREFIX + "§e/yov check <variable> [player]");
                 sender.sendMessage(PREFIX + "§e/yov storage §7- Show current storage type");
+                sender.sendMessage(PREFIX + "§e/yov stats §7- Show cache statistics");
                 sender.sendMessage(PREFIX + "§e/yov migrate <from> <to> §7- Migrate between storages (console only)");
                 sender.sendMessage(PREFIX + "§e/yov userclear <player> §7- Remove all variables of player");
                 return true;
@@ -69,13 +78,23 @@ public class YOVCommand implements TabExecutor {
                 return true;
             }
 
+            if (args[0].equalsIgnoreCase("bulk")) {
+                runBulk(sender, args);
+                return true;
+            }
+
             if (args.length == 1 && args[0].equalsIgnoreCase("storage")) {
                 sender.sendMessage(PREFIX + "§eCurrent storage: §6" + plugin.getStorageType());
                 return true;
             }
 
+            if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+                sendStats(sender);
+                return true;
+            }
+
             if (args.length < 2) {
-                sender.sendMessage(PREFIX + "§cUsage: /yov <help|reload|migrate|set|add|rem|delete|check|userclear>");
+                sender.sendMessage(PREFIX + "§cUsage: /yov <help|reload|migrate|set|add|rem|mul|div|min|max|clamp|math|delete|bulk|check|userclear|stats>");
                 return true;
             }
 
@@ -83,6 +102,24 @@ public class YOVCommand implements TabExecutor {
             if (silent) args = Arrays.copyOf(args, args.length - 1);
 
             String action = args[0].toLowerCase(Locale.ROOT);
+
+            if (action.equals("clamp")) {
+                if (args.length < 4) {
+                    sender.sendMessage(PREFIX + "§cUsage: /yov clamp <variable> <min> <max> [player] [-s]");
+                    return true;
+                }
+                String clampKey = args.length >= 5
+                        ? args[4].toLowerCase(Locale.ROOT) + "_" + args[1].toLowerCase(Locale.ROOT)
+                        : args[1].toLowerCase(Locale.ROOT);
+                variableService.clampVariable(clampKey, args[2], args[3], sender, silent);
+                return true;
+            }
+
+            if (action.equals("math")) {
+                runMath(sender, args, silent);
+                return true;
+            }
+
             String baseKey = args[1];
             String value = args.length >= 3 ? args[2] : null;
             String playerName = args.length >= 4 ? args[3] : null;
@@ -99,6 +136,18 @@ public class YOVCommand implements TabExecutor {
                 case "rem" -> {
                     if (value != null) variableService.remVariable(key, value, sender, silent);
                 }
+                case "mul" -> {
+                    if (value != null) variableService.mulVariable(key, value, sender, silent);
+                }
+                case "div" -> {
+                    if (value != null) variableService.divVariable(key, value, sender, silent);
+                }
+                case "min" -> {
+                    if (value != null) variableService.minVariable(key, value, sender, silent);
+                }
+                case "max" -> {
+                    if (value != null) variableService.maxVariable(key, value, sender, silent);
+                }
                 case "set" -> {
                     if (value != null) variableService.setVariable(key, value, sender, silent);
                 }
@@ -124,34 +173,53 @@ public class YOVCommand implements TabExecutor {
 
         if (args.length == 1) {
             return filterList(
-                    Arrays.asList("help", "reload", "set", "add", "rem", "delete", "check", "storage", "migrate", "userclear"),
+                    Arrays.asList("help", "reload", "set", "add", "rem", "mul", "div", "min", "max", "clamp", "math", "delete", "bulk", "check", "storage", "stats", "migrate", "userclear"),
                     args[0]);
         }
 
         if (args.length == 2) {
             if (args[0].equalsIgnoreCase("migrate")) {
-                return filterList(Arrays.asList("sqlite", "mariadb", "yaml"), args[1]);
+                return filterList(Arrays.asList("sqlite", "mariadb", "yaml", "log"), args[1]);
+            }
+            if (args[0].equalsIgnoreCase("bulk")) {
+                return filterList(Arrays.asList("set", "add", "rem", "delete"), args[1]);
             }
             if (args[0].equalsIgnoreCase("userclear")) {
                 List<String> players = new ArrayList<>();
                 for (Player p : Bukkit.getOnlinePlayers()) players.add(p.getName());
                 return filterList(players, args[1]);
             }
-            return filterList(new ArrayList<>(cache.getMap().keySet()), args[1]);
+            return cache.getKeysByPrefix(args[1].toLowerCase(Locale.ROOT), KEY_COMPLETION_LIMIT);
+        }
+
+        if (args[0].equalsIgnoreCase("bulk")) {
+            if (args.length == 3) return filterList(List.of("Pattern"), args[2]);
+            if (args.length == 4 && !args[1].equalsIgnoreCase("delete")) {
+                return filterList(List.of(args[1].equalsIgnoreCase("set") ? "Value" : "Amount"), args[3]);
+            }
+            return List.of();
         }
 
         if (args.length == 3 && args[0].equalsIgnoreCase("migrate")) {
-            return filterList(Arrays.asList("sqlite", "mariadb", "yaml"), args[2]);
+            return filterList(Arrays.asList("sqlite", "mariadb", "yaml", "log"), args[2]);
         }
 
         if (args.length == 3 && args[0].equalsIgnoreCase("set")) {
             return filterList(List.of("Value"), args[2]);
         }
 
-        if (args.length == 4) {
+        if (args.length == 3 && args[0].equalsIgnoreCase("math")) {
+            return filterList(List.of("\"Expression\""), args[2]);
+        }
+
+        if (args.length == 4 && args[0].equalsIgnoreCase("clamp")) {
+            return filterList(List.of("Max"), args[3]);
+        }
+
+        if (args.length == 4 || (args.length == 5 && args[0].equalsIgnoreCase("clamp"))) {
             List<String> players = new ArrayList<>();
             for (Player p : Bukkit.getOnlinePlayers()) players.add(p.getName());
-            return filterList(players, args[3]);
+            return filterList(players, args[args.length - 1]);
         }
 
         if (args.length == 5) {
@@ -161,6 +229,86 @@ public class YOVCommand implements TabExecutor {
         return List.of();
     }
 
+    // the expression is one argument, or several between double quotes
+    private void runMath(CommandSender sender, String[] args, boolean silent) {
+        String usage = YOVPlugin.PREFIX + "§cUsage: /yov math <variable> \"<expression>\" [player] [-s]";
+        if (args.length < 3) {
+            sender.sendMessage(usage);
+            return;
+        }
+
+        String expression = args[2];
+        int next = 3;
+        if (expression.startsWith("\"")) {
+            StringBuilder sb = new StringBuilder(expression);
+            while (sb.length() < 2 || sb.charAt(sb.length() - 1) != '"') {
+                if (next >= args.length) {
+                    sender.sendMessage(usage);
+                    return;
+                }
+                sb.append(' ').append(args[next++]);
+            }
+            expression = sb.substring(1, sb.length() - 1);
+        }
+
+        if (args.length > next + 1) {
+            sender.sendMessage(usage);
+            return;
+        }
+
+        String playerName = args.length == next + 1 ? args[next] : null;
+        String key = playerName != null
+                ? playerName.toLowerCase(Locale.ROOT) + "_" + args[1].toLowerCase(Locale.ROOT)
+                : args[1].toLowerCase(Locale.ROOT);
+        variableService.mathVariable(key, expression, playerName, sender, silent);
+    }
+
+    private void runBulk(CommandSender sender, String[] args) {
+        String PREFIX = YOVPlugin.PREFIX;
+        String action = args.length >= 2 ? args[1].toLowerCase(Locale.ROOT) : "";
+        boolean delete = action.equals("delete");
+
+        if (args.length != (delete ? 3 : 4)) {
+            sender.sendMessage(PREFIX + "§cUsage: /yov bulk <set|add|rem|delete> <pattern> [value]");
+            return;
+        }
+
+        switch (action) {
+            case "set" -> variableService.bulkSetVariables(args[2], args[3], sender);
+            case "add" -> variableService.bulkAddVariables(args[2], args[3], sender);
+            case "rem" -> variableService.bulkRemVariables(args[2], args[3], sender);
+            case "delete" -> variableService.bulkDeleteVariables(args[2], sender);
+            default -> sender.sendMessage(PREFIX + "§cUnknown action: " + action);
+        }
+    }
+
+    private void sendStats(CommandSender sender) {
+        String PREFIX = YOVPlugin.PREFIX;
+
+        sender.sendMessage(PREFIX + "§eCached variables: §6" + cache.size());
+        sender.sendMessage(PREFIX + "§eKnown missing keys: §6" + cache.getNegativeCache().getMissCount() +
+                " §eHot counters: §6" + variableService.getHotCounterCount());
+        sender.sendMessage(PREFIX + "§eCache hits: §6" + variableService.getCacheHits() +
+                " §eMisses: §6" + variableService.getCacheMisses());
+        sender.sendMessage(PREFIX + "§eBackend loads: §6" + variableService.getBackendLoads() +
+                " §7in " + variableService.getBackendRoundTrips() + " queries" +
+                " §eCoalesced: §6" + variableService.getCoalescedLoads());
+
+        WriteQueue queue = variableService.getWriteQueue();
+        sender.sendMessage(PREFIX + "§eQueued writes: §6" + queue.getPendingCount() +
+                " §7(commit ~" + String.format(Locale.ROOT, "%.1f", queue.getCommitLatencyMs()) + " ms)");
+        if (queue.getSpilledCount() > 0) {
+            sender.sendMessage(PREFIX + "§cSpilled to disk: §6" + queue.getSpilledCount() +
+                    " §7(" + (queue.getSpilledBytes() / 1024L) + " KiB)");
+        }
+
+        ValueInterner interner = cache.getInterner();
+        if (interner != null) {
+            sender.sendMessage(PREFIX + "§eDeduplicated: §6" + interner.getHits() +
+                    " §7(~" + (variableService.estimateDedupSavedBytes() / 1024L) + " KiB saved)");
+        }
+    }
+
     private List<String> filterList(@NotNull List<String> list, @Nullable String prefix) {
         if (prefix == null || prefix.isEmpty()) return list;
         List<String> filtered = new ArrayList<>();
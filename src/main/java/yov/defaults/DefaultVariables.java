@@ -9,6 +9,7 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import yov.YOVPlugin;
+import yov.async.WritePriority;
 import yov.cache.VariableCache;
 import yov.service.VariableService;
 
@@ -54,7 +55,7 @@ public class DefaultVariables implements Listener {
     public void onJoin(PlayerJoinEvent event) {
         Player p = event.getPlayer();
 
-        service.syncPlayerFromStorage(p.getName());
+        service.playerJoined(p.getName());
 
         String player = p.getName().toLowerCase(Locale.ROOT);
 
@@ -80,12 +81,12 @@ public class DefaultVariables implements Listener {
             String value = section.getString(var);
             if (value == null) continue;
 
-            service.setVariable(fullKey, value, null, true);
+            service.setVariable(fullKey, value, null, true, WritePriority.BULK);
         }
     }
 
     @EventHandler
     public void onQuit(PlayerQuitEvent event) {
-        service.flushNow();
+        service.playerQuit(event.getPlayer().getName());
     }
 }
@@ -0,0 +1,101 @@
+package yov.listener;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import yov.YOVPlugin;
+import yov.command.YOVCommand;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+
+// Paper only: answers /yov completions on the async tab-complete thread instead of the main thread
+public class AsyncTabCompleteListener implements Listener {
+
+    private static final String EVENT_CLASS = "com.destroystokyo.paper.event.server.AsyncTabCompleteEvent";
+
+    private final YOVPlugin plugin;
+    private final PluginCommand command;
+    private final Set<String> labels = new HashSet<>();
+
+    private final Method isCommand;
+    private final Method isHandled;
+    private final Method getBuffer;
+    private final Method getSender;
+    private final Method setCompletions;
+    private final Method setHandled;
+
+    private AsyncTabCompleteListener(YOVPlugin plugin, PluginCommand command, Class<?> eventClass) throws Exception {
+        this.plugin = plugin;
+        this.command = command;
+
+        this.isCommand = eventClass.getMethod("isCommand");
+        this.isHandled = eventClass.getMethod("isHandled");
+        this.getBuffer = eventClass.getMethod("getBuffer");
+        this.getSender = eventClass.getMethod("getSender");
+        this.setCompletions = eventClass.getMethod("setCompletions", List.class);
+        this.setHandled = eventClass.getMethod("setHandled", boolean.class);
+
+        String name = command.getName().toLowerCase(Locale.ROOT);
+        String namespace = plugin.getPluginName().toLowerCase(Locale.ROOT) + ":";
+        labels.add(name);
+        labels.add(namespace + name);
+        for (String alias : command.getAliases()) {
+            labels.add(alias.toLowerCase(Locale.ROOT));
+            labels.add(namespace + alias.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static boolean register(YOVPlugin plugin, PluginCommand command) {
+        Class<? extends Event> eventClass;
+        try {
+            eventClass = (Class<? extends Event>) Class.forName(EVENT_CLASS);
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+
+        try {
+            AsyncTabCompleteListener listener = new AsyncTabCompleteListener(plugin, command, eventClass);
+            Bukkit.getPluginManager().registerEvent(eventClass, listener, EventPriority.NORMAL,
+                    (l, event) -> listener.handle(event), plugin);
+            return true;
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to hook Paper async tab completion", e);
+            return false;
+        }
+    }
+
+    private void handle(Event event) {
+        try {
+            if (!(boolean) isCommand.invoke(event) || (boolean) isHandled.invoke(event)) return;
+
+            String buffer = (String) getBuffer.invoke(event);
+            if (buffer.startsWith("/")) buffer = buffer.substring(1);
+
+            int space = buffer.indexOf(' ');
+            if (space < 0) return;
+
+            String label = buffer.substring(0, space).toLowerCase(Locale.ROOT);
+            if (!labels.contains(label)) return;
+
+            YOVCommand executor = plugin.getCommandExecutor();
+            if (executor == null) return;
+
+            String[] args = buffer.substring(space + 1).split(" ", -1);
+            CommandSender sender = (CommandSender) getSender.invoke(event);
+
+            setCompletions.invoke(event, executor.onTabComplete(sender, command, label, args));
+            setHandled.invoke(event, true);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.FINE, "Async tab completion failed", e);
+        }
+    }
+}
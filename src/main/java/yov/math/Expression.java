@@ -0,0 +1,292 @@
+package yov.math;
+
+import yov.cache.BoundedCache;
+import yov.cache.CachedValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+// arithmetic over variables, compiled once per expression string into a tree evaluated on cached values:
+// + - * / and parentheses, min(..), max(..), abs(x), clamp(x, min, max), numbers, variable names,
+// $name for the player's own variable and {any key} for keys that are not plain names
+public final class Expression {
+
+    public record Variable(String name, boolean playerKey) {
+        public String key(String playerName) {
+            return playerKey ? playerName.toLowerCase(Locale.ROOT) + "_" + name : name;
+        }
+    }
+
+    private interface Node {
+        CachedValue eval(Function<Variable, CachedValue> lookup);
+    }
+
+    private record Constant(CachedValue value) implements Node {
+        public CachedValue eval(Function<Variable, CachedValue> lookup) {
+            return value;
+        }
+    }
+
+    // a missing variable counts as 0, like add and rem
+    private record Reference(Variable variable) implements Node {
+        public CachedValue eval(Function<Variable, CachedValue> lookup) {
+            CachedValue v = lookup.apply(variable);
+            return v != null ? v : ZERO;
+        }
+    }
+
+    private record Binary(NumericEngine.Op op, Node left, Node right) implements Node {
+        public CachedValue eval(Function<Variable, CachedValue> lookup) {
+            CachedValue a = left.eval(lookup);
+            if (a == null) return null;
+            return NumericEngine.apply(op, a, right.eval(lookup));
+        }
+    }
+
+    private record Clamp(Node value, Node min, Node max) implements Node {
+        public CachedValue eval(Function<Variable, CachedValue> lookup) {
+            return NumericEngine.clamp(value.eval(lookup), min.eval(lookup), max.eval(lookup));
+        }
+    }
+
+    private static final CachedValue ZERO = CachedValue.ofLong(0L);
+    private static final int MAX_LENGTH = 512;
+    private static final int MAX_DEPTH = 64;
+    private static final BoundedCache<Expression> COMPILED = new BoundedCache<>(1024);
+
+    private final String source;
+    private final Node root;
+    private final List<Variable> variables;
+    private final String error;
+
+    private Expression(String source, Node root, List<Variable> variables, String error) {
+        this.source = source;
+        this.root = root;
+        this.variables = variables;
+        this.error = error;
+    }
+
+    // parse errors are cached too, as an invalid expression
+    public static Expression compile(String source) {
+        return COMPILED.get(source, Expression::parse);
+    }
+
+    private static Expression parse(String source) {
+        if (source.length() > MAX_LENGTH) {
+            return new Expression(source, null, List.of(), "Expression is longer than " + MAX_LENGTH + " characters.");
+        }
+        try {
+            Parser parser = new Parser(source);
+            Node root = parser.parse();
+            return new Expression(source, root, Collections.unmodifiableList(parser.variables), null);
+        } catch (IllegalArgumentException e) {
+            return new Expression(source, null, List.of(), e.getMessage());
+        }
+    }
+
+    public boolean isValid() {
+        return root != null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public List<Variable> getVariables() {
+        return variables;
+    }
+
+    public boolean usesPlayerKeys() {
+        for (Variable v : variables) {
+            if (v.playerKey()) return true;
+        }
+        return false;
+    }
+
+    // null when a value is not a number or on division by zero
+    public CachedValue evaluate(Function<Variable, CachedValue> lookup) {
+        if (root == null) return null;
+        CachedValue result = root.eval(lookup);
+        return result == null || result.isNumeric() ? result : NumericEngine.normalize(result);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static final class Parser {
+
+        private final String s;
+        private final List<Variable> variables = new ArrayList<>();
+        private int pos = 0;
+        private int depth = 0;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Node parse() {
+            Node node = sum();
+            skipSpaces();
+            if (pos < s.length()) throw error("Unexpected '" + s.charAt(pos) + "'");
+            return node;
+        }
+
+        private Node sum() {
+            Node node = product();
+            while (true) {
+                if (accept('+')) node = binary(NumericEngine.Op.ADD, node, product());
+                else if (accept('-')) node = binary(NumericEngine.Op.SUB, node, product());
+                else return node;
+            }
+        }
+
+        private Node product() {
+            Node node = unary();
+            while (true) {
+                if (accept('*')) node = binary(NumericEngine.Op.MUL, node, unary());
+                else if (accept('/')) node = binary(NumericEngine.Op.DIV, node, unary());
+                else return node;
+            }
+        }
+
+        private Node unary() {
+            if (accept('-')) return binary(NumericEngine.Op.SUB, new Constant(ZERO), unary());
+            if (accept('+')) return unary();
+            return primary();
+        }
+
+        private Node primary() {
+            if (++depth > MAX_DEPTH) throw error("Expression is nested too deeply");
+            try {
+                skipSpaces();
+                if (pos >= s.length()) throw error("Unexpected end of expression");
+
+                char c = s.charAt(pos);
+                if (accept('(')) {
+                    Node node = sum();
+                    expect(')');
+                    return node;
+                }
+                if (accept('{')) {
+                    int end = s.indexOf('}', pos);
+                    if (end < 0) throw error("Missing '}'");
+                    String key = s.substring(pos, end).trim();
+                    pos = end + 1;
+                    if (key.isEmpty()) throw error("Empty variable name");
+                    return reference(key, false);
+                }
+                if (accept('$')) {
+                    String name = name();
+                    if (name.isEmpty()) throw error("Missing variable name after '$'");
+                    return reference(name, true);
+                }
+                if ((c >= '0' && c <= '9') || c == '.') {
+                    return number();
+                }
+
+                String name = name();
+                if (name.isEmpty()) throw error("Unexpected '" + c + "'");
+                if (accept('(')) return function(name);
+                return reference(name, false);
+            } finally {
+                depth--;
+            }
+        }
+
+        private Node function(String name) {
+            List<Node> args = new ArrayList<>();
+            if (!accept(')')) {
+                do {
+                    args.add(sum());
+                } while (accept(','));
+                expect(')');
+            }
+
+            switch (name) {
+                case "min", "max" -> {
+                    if (args.isEmpty()) throw error(name + "() needs at least one argument");
+                    NumericEngine.Op op = name.equals("min") ? NumericEngine.Op.MIN : NumericEngine.Op.MAX;
+                    Node node = args.get(0);
+                    for (int i = 1; i < args.size(); i++) node = binary(op, node, args.get(i));
+                    return node;
+                }
+                case "abs" -> {
+                    if (args.size() != 1) throw error("abs() takes one argument");
+                    Node x = args.get(0);
+                    return binary(NumericEngine.Op.MAX, x, binary(NumericEngine.Op.SUB, new Constant(ZERO), x));
+                }
+                case "clamp" -> {
+                    if (args.size() != 3) throw error("clamp() takes three arguments");
+                    Node node = new Clamp(args.get(0), args.get(1), args.get(2));
+                    return args.stream().allMatch(a -> a instanceof Constant) ? fold(node) : node;
+                }
+                default -> throw error("Unknown function " + name + "()");
+            }
+        }
+
+        private Node binary(NumericEngine.Op op, Node left, Node right) {
+            Node node = new Binary(op, left, right);
+            return left instanceof Constant && right instanceof Constant ? fold(node) : node;
+        }
+
+        // constant parts are computed once here instead of on every evaluation
+        private Node fold(Node node) {
+            CachedValue v = node.eval(variable -> null);
+            if (v == null) throw error("Division by zero");
+            return new Constant(v);
+        }
+
+        private Node reference(String name, boolean playerKey) {
+            Variable variable = new Variable(name.toLowerCase(Locale.ROOT), playerKey);
+            if (!variables.contains(variable)) variables.add(variable);
+            return new Reference(variable);
+        }
+
+        private Node number() {
+            int start = pos;
+            while (pos < s.length() && ((s.charAt(pos) >= '0' && s.charAt(pos) <= '9') || s.charAt(pos) == '.')) pos++;
+
+            CachedValue value = NumericEngine.normalize(CachedValue.of(s.substring(start, pos)));
+            if (value == null) throw error("Invalid number '" + s.substring(start, pos) + "'");
+            return new Constant(value);
+        }
+
+        private String name() {
+            skipSpaces();
+            int start = pos;
+            while (pos < s.length() && isNameChar(s.charAt(pos))) pos++;
+            return s.substring(start, pos).toLowerCase(Locale.ROOT);
+        }
+
+        private static boolean isNameChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '.' || c == ':';
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) throw error("Missing '" + c + "'");
+        }
+
+        private void skipSpaces() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1) + ".");
+        }
+    }
+}
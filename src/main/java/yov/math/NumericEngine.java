@@ -0,0 +1,226 @@
+package yov.math;
+
+import yov.cache.CachedValue;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// arithmetic on cached values: long and 5-decimal fixed point without allocation,
+// BigDecimal only once a result no longer fits
+public final class NumericEngine {
+
+    public enum Op {
+        ADD,
+        SUB,
+        MUL,
+        DIV,
+        MIN,
+        MAX
+    }
+
+    private static final long SCALE_FACTOR = CachedValue.SCALE_FACTOR;
+    // returned by toUnscaled for values that do not fit 5-decimal fixed point
+    public static final long NO_FIT = Long.MIN_VALUE;
+
+    private NumericEngine() {}
+
+    // null when an operand is not a number or on division by zero
+    public static CachedValue apply(Op op, CachedValue a, CachedValue b) {
+        if (a == null || b == null) return null;
+
+        if (a.getKind() == CachedValue.Kind.LONG && b.getKind() == CachedValue.Kind.LONG) {
+            CachedValue r = applyLong(op, a.getLong(), b.getLong());
+            if (r != null) return r;
+        } else if (a.isNumeric() && b.isNumeric()) {
+            long x = unscaled(a);
+            long y = unscaled(b);
+            if (x != NO_FIT && y != NO_FIT) {
+                CachedValue r = applyScaled(op, x, y);
+                if (r != null) return r;
+            }
+        }
+
+        return applyBig(op, a, b);
+    }
+
+    public static CachedValue clamp(CachedValue value, CachedValue min, CachedValue max) {
+        if (!isNumber(min) || !isNumber(max)) return null;
+        if (compare(min, max) > 0) {
+            CachedValue swap = min;
+            min = max;
+            max = swap;
+        }
+        return apply(Op.MIN, apply(Op.MAX, value, min), max);
+    }
+
+    public static boolean isNumber(CachedValue v) {
+        return v != null && (v.isNumeric() || isNumberText(v.asString()));
+    }
+
+    public static boolean isZero(CachedValue v) {
+        if (v == null) return false;
+        return switch (v.getKind()) {
+            case LONG, DECIMAL -> v.getLong() == 0L;
+            case STRING -> isNumberText(v.asString()) && toBigDecimal(v).signum() == 0;
+        };
+    }
+
+    // canonical form of a number as it would be stored, or null
+    public static CachedValue normalize(CachedValue v) {
+        if (v == null) return null;
+        return switch (v.getKind()) {
+            case LONG -> CachedValue.ofLong(v.getLong());
+            case DECIMAL -> CachedValue.ofDecimal(v.getLong());
+            case STRING -> isNumberText(v.asString()) ? fromBig(toBigDecimal(v)) : null;
+        };
+    }
+
+    // rounded to 5 decimals like every stored value; null when not a number
+    public static BigDecimal toBigDecimal(CachedValue v) {
+        if (v == null) return null;
+        return switch (v.getKind()) {
+            case LONG -> BigDecimal.valueOf(v.getLong());
+            case DECIMAL -> BigDecimal.valueOf(v.getLong(), CachedValue.SCALE);
+            case STRING -> isNumberText(v.asString())
+                    ? new BigDecimal(v.asString().trim().replace(',', '.')).setScale(CachedValue.SCALE, RoundingMode.HALF_UP)
+                    : null;
+        };
+    }
+
+    public static long toUnscaled(CachedValue v) {
+        return v != null && v.isNumeric() ? unscaled(v) : NO_FIT;
+    }
+
+    private static int compare(CachedValue a, CachedValue b) {
+        if (a.getKind() == CachedValue.Kind.LONG && b.getKind() == CachedValue.Kind.LONG) {
+            return Long.compare(a.getLong(), b.getLong());
+        }
+        long x = a.isNumeric() ? unscaled(a) : NO_FIT;
+        long y = b.isNumeric() ? unscaled(b) : NO_FIT;
+        if (x != NO_FIT && y != NO_FIT) return Long.compare(x, y);
+        return toBigDecimal(a).compareTo(toBigDecimal(b));
+    }
+
+    private static CachedValue applyLong(Op op, long x, long y) {
+        switch (op) {
+            case ADD -> {
+                long r = x + y;
+                return ((x ^ r) & (y ^ r)) < 0 ? null : CachedValue.ofLong(r);
+            }
+            case SUB -> {
+                long r = x - y;
+                return ((x ^ y) & (x ^ r)) < 0 ? null : CachedValue.ofLong(r);
+            }
+            case MUL -> {
+                long r = x * y;
+                return Math.multiplyHigh(x, y) != (r >> 63) ? null : CachedValue.ofLong(r);
+            }
+            case DIV -> {
+                if (y == 0L || y == Long.MIN_VALUE || x == Long.MIN_VALUE) return null;
+                if (x % y == 0L) return CachedValue.ofLong(x / y);
+                long n = multiply(x, SCALE_FACTOR);
+                return n == NO_FIT ? null : CachedValue.ofDecimal(divideHalfUp(n, y));
+            }
+            case MIN -> {
+                return CachedValue.ofLong(Math.min(x, y));
+            }
+            case MAX -> {
+                return CachedValue.ofLong(Math.max(x, y));
+            }
+        }
+        return null;
+    }
+
+    private static CachedValue applyScaled(Op op, long x, long y) {
+        switch (op) {
+            case ADD -> {
+                long r = x + y;
+                return ((x ^ r) & (y ^ r)) < 0 || r == NO_FIT ? null : CachedValue.ofDecimal(r);
+            }
+            case SUB -> {
+                long r = x - y;
+                return ((x ^ y) & (x ^ r)) < 0 || r == NO_FIT ? null : CachedValue.ofDecimal(r);
+            }
+            case MUL -> {
+                long hi = Math.multiplyHigh(x, y);
+                long lo = x * y;
+                if (hi != (lo >> 63) || lo == NO_FIT) return null;
+                return CachedValue.ofDecimal(divideHalfUp(lo, SCALE_FACTOR));
+            }
+            case DIV -> {
+                if (y == 0L) return null;
+                long n = multiply(x, SCALE_FACTOR);
+                return n == NO_FIT ? null : CachedValue.ofDecimal(divideHalfUp(n, y));
+            }
+            case MIN -> {
+                return CachedValue.ofDecimal(Math.min(x, y));
+            }
+            case MAX -> {
+                return CachedValue.ofDecimal(Math.max(x, y));
+            }
+        }
+        return null;
+    }
+
+    private static CachedValue applyBig(Op op, CachedValue a, CachedValue b) {
+        BigDecimal x = toBigDecimal(a);
+        BigDecimal y = toBigDecimal(b);
+        if (x == null || y == null) return null;
+
+        BigDecimal r = switch (op) {
+            case ADD -> x.add(y);
+            case SUB -> x.subtract(y);
+            case MUL -> x.multiply(y).setScale(CachedValue.SCALE, RoundingMode.HALF_UP);
+            case DIV -> y.signum() == 0 ? null : x.divide(y, CachedValue.SCALE, RoundingMode.HALF_UP);
+            case MIN -> x.min(y);
+            case MAX -> x.max(y);
+        };
+        return r == null ? null : fromBig(r);
+    }
+
+    private static CachedValue fromBig(BigDecimal r) {
+        if (r.signum() == 0) return CachedValue.ofLong(0L);
+        return CachedValue.of(r.stripTrailingZeros().toPlainString());
+    }
+
+    private static long unscaled(CachedValue v) {
+        if (v.getKind() == CachedValue.Kind.DECIMAL) return v.getLong();
+        return multiply(v.getLong(), SCALE_FACTOR);
+    }
+
+    private static long multiply(long x, long y) {
+        long r = x * y;
+        return Math.multiplyHigh(x, y) != (r >> 63) || r == NO_FIT ? NO_FIT : r;
+    }
+
+    // d is never Long.MIN_VALUE here
+    private static long divideHalfUp(long n, long d) {
+        long q = n / d;
+        long rem = Math.abs(n % d);
+        long half = Math.abs(d) - rem;
+        if (rem >= half) q += (n < 0) == (d < 0) ? 1 : -1;
+        return q;
+    }
+
+    private static boolean isNumberText(String s) {
+        if (s == null) return false;
+        s = s.trim();
+        int len = s.length();
+        int i = 0;
+        if (len > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) i = 1;
+
+        int digits = 0;
+        boolean point = false;
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if ((c == '.' || c == ',') && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits > 0;
+    }
+}
@@ -0,0 +1,90 @@
+package yov.placeholder;
+
+import org.bukkit.entity.Player;
+import yov.cache.BoundedCache;
+
+import java.util.Locale;
+import java.util.function.Function;
+
+final class PlaceholderResolver {
+
+    static final PlaceholderResolver INVALID = new PlaceholderResolver(false, null, -1);
+
+    private static final String PLAYER_KEY = "player_key";
+    private static final int PLAYER_KEY_CACHE_SIZE = 512;
+
+    private final boolean playerKey;
+    private final String variable;
+    private final String format;
+    private final BoundedCache<String> playerKeys;
+    private final Function<String, String> playerKeyBuilder = this::buildPlayerKey;
+
+    private PlaceholderResolver(boolean playerKey, String variable, int decimals) {
+        this.playerKey = playerKey;
+        this.variable = variable;
+        this.format = decimals >= 0 ? "%." + decimals + "f" : null;
+        this.playerKeys = playerKey ? new BoundedCache<>(PLAYER_KEY_CACHE_SIZE) : null;
+    }
+
+    // %yov_<key>% and %yov_player_key:<var>%
+    static PlaceholderResolver compileVar(String identifier) {
+        if (identifier.startsWith(PLAYER_KEY + ":")) {
+            return new PlaceholderResolver(true, lower(identifier.substring(PLAYER_KEY.length() + 1)), 0);
+        }
+        return new PlaceholderResolver(false, lower(identifier), 0);
+    }
+
+    // %yov_player_key_<var>%
+    static PlaceholderResolver compilePlayerKey(String identifier) {
+        return new PlaceholderResolver(true, lower(identifier), 0);
+    }
+
+    // %rounded[_player_key][_<decimals>]:<key>%
+    static PlaceholderResolver compileRounded(String identifier) {
+        if (identifier.isEmpty()) return INVALID;
+
+        int decimals = 0;
+        boolean isPlayerKey = identifier.startsWith(PLAYER_KEY);
+        String keyPart = isPlayerKey ? identifier.substring(PLAYER_KEY.length()) : identifier;
+
+        if (keyPart.startsWith("_")) {
+            int colon = keyPart.indexOf(':');
+            if (colon < 0) return INVALID;
+            try {
+                decimals = Integer.parseInt(keyPart.substring(1, colon));
+            } catch (NumberFormatException ignored) {}
+            keyPart = keyPart.substring(colon);
+        }
+
+        if (!keyPart.startsWith(":") || decimals < 0) return INVALID;
+
+        return new PlaceholderResolver(isPlayerKey, lower(keyPart.substring(1)), decimals);
+    }
+
+    private static String lower(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    boolean isValid() {
+        return variable != null;
+    }
+
+    boolean isPlayerKey() {
+        return playerKey;
+    }
+
+    String getFormat() {
+        return format;
+    }
+
+    String resolveKey(Player player) {
+        if (!playerKey || player == null) {
+            return variable;
+        }
+        return playerKeys.get(player.getName(), playerKeyBuilder);
+    }
+
+    private String buildPlayerKey(String playerName) {
+        return playerName.toLowerCase(Locale.ROOT) + "_" + variable;
+    }
+}
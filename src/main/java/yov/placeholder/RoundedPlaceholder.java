@@ -5,6 +5,8 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import yov.YOVPlugin;
+import yov.cache.BoundedCache;
+import yov.cache.CachedValue;
 import yov.service.VariableService;
 
 import java.util.Locale;
@@ -13,6 +15,7 @@ public class RoundedPlaceholder extends PlaceholderExpansion {
 
     private final VariableService variableService;
     private final YOVPlugin plugin;
+    private final BoundedCache<PlaceholderResolver> resolvers = new BoundedCache<>(1024);
 
     public RoundedPlaceholder(YOVPlugin plugin, VariableService variableService) {
         this.plugin = plugin;
@@ -48,36 +51,15 @@ public class RoundedPlaceholder extends PlaceholderExpansion {
     public @Nullable String onPlaceholderRequest(@Nullable Player player, @NotNull String identifier) {
         if (identifier.isEmpty()) return null;
 
-        try {
-            int decimals = 0;
-            boolean isPlayerKey = identifier.startsWith("player_key");
-            String keyPart = identifier;
-
-            if (isPlayerKey) {
-                keyPart = identifier.substring("player_key".length());
-            }
-
-            if (keyPart.startsWith("_")) {
-                String[] split = keyPart.substring(1).split(":", 2);
-                try {
-                    decimals = Integer.parseInt(split[0]);
-                } catch (NumberFormatException ignored) {}
-                keyPart = ":" + split[1];
-            }
+        PlaceholderResolver resolver = resolvers.get(identifier, PlaceholderResolver::compileRounded);
+        if (!resolver.isValid()) return "null";
 
-            if (!keyPart.startsWith(":")) return "null";
-
-            String key = keyPart.substring(1);
-            if (isPlayerKey && player != null) {
-                key = player.getName().toLowerCase(Locale.ROOT) + "_" + key.toLowerCase(Locale.ROOT);
-            }
-
-            String value = variableService.getSynchronizedValue(key.toLowerCase(Locale.ROOT));
-            if (value == null || value.equals("null")) return "null";
+        try {
+            CachedValue value = variableService.getPlaceholderEntry(resolver.resolveKey(player));
+            if (value == null || value.asString().equals("null")) return "null";
 
-            double num = Double.parseDouble(value);
-            String pattern = "%." + decimals + "f";
-            return String.format(Locale.ROOT, pattern, num);
+            double num = value.toDouble();
+            return String.format(Locale.ROOT, resolver.getFormat(), num);
         } catch (Exception e) {
             return "null";
         }
@@ -5,14 +5,18 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import yov.YOVPlugin;
+import yov.cache.BoundedCache;
+import yov.cache.CachedValue;
+import yov.math.Expression;
 import yov.service.VariableService;
 
-import java.util.Locale;
-
 public class VarPlaceholder extends PlaceholderExpansion {
 
+    private static final String EXPR = "expr:";
+
     private final VariableService variableService;
     private final YOVPlugin plugin;
+    private final BoundedCache<PlaceholderResolver> resolvers = new BoundedCache<>(1024);
 
     public VarPlaceholder(YOVPlugin plugin, VariableService variableService) {
         this.variableService = variableService;
@@ -46,15 +50,17 @@ public class VarPlaceholder extends PlaceholderExpansion {
 
     @Override
     public @Nullable String onPlaceholderRequest(@Nullable Player player, @NotNull String identifier) {
-        String key = identifier;
-
-        if (identifier.startsWith("player_key:")) {
-            if (player == null) return "null";
-            String var = identifier.substring("player_key:".length());
-            key = player.getName().toLowerCase(Locale.ROOT) + "_" + var.toLowerCase(Locale.ROOT);
+        // %yov_expr:<expression>%
+        if (identifier.startsWith(EXPR)) {
+            Expression expression = Expression.compile(identifier.substring(EXPR.length()));
+            CachedValue result = variableService.evaluate(expression, player != null ? player.getName() : null);
+            return result != null ? result.asString() : "null";
         }
 
-        String val = variableService.getSynchronizedValue(key.toLowerCase(Locale.ROOT));
+        PlaceholderResolver resolver = resolvers.get(identifier, PlaceholderResolver::compileVar);
+        if (resolver.isPlayerKey() && player == null) return "null";
+
+        String val = variableService.getPlaceholderValue(resolver.resolveKey(player));
         return val != null ? val : "null";
     }
 }
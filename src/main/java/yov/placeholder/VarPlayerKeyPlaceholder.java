@@ -5,14 +5,14 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import yov.YOVPlugin;
+import yov.cache.BoundedCache;
 import yov.service.VariableService;
 
-import java.util.Locale;
-
 public class VarPlayerKeyPlaceholder extends PlaceholderExpansion {
 
     private final VariableService variableService;
     private final YOVPlugin plugin;
+    private final BoundedCache<PlaceholderResolver> resolvers = new BoundedCache<>(1024);
 
     public VarPlayerKeyPlaceholder(YOVPlugin plugin, VariableService variableService) {
         this.variableService = variableService;
@@ -48,9 +48,9 @@ public class VarPlayerKeyPlaceholder extends PlaceholderExpansion {
     public @Nullable String onPlaceholderRequest(@Nullable Player player, @NotNull String identifier) {
         if (player == null) return "null";
 
-        String fullKey = (player.getName() + "_" + identifier).toLowerCase(Locale.ROOT);
+        PlaceholderResolver resolver = resolvers.get(identifier, PlaceholderResolver::compilePlayerKey);
 
-        String val = variableService.getSynchronizedValue(fullKey);
+        String val = variableService.getPlaceholderValue(resolver.resolveKey(player));
         return val != null ? val : "null";
     }
 }
@@ -5,6 +5,7 @@ import org.bukkit.command.ConsoleCommandSender;
 import yov.YOVPlugin;
 import yov.cache.VariableCache;
 import yov.storage.*;
+import yov.storage.impl.LogStorage;
 import yov.storage.impl.SqlStorage;
 import yov.storage.impl.SqliteStorage;
 import yov.storage.impl.YamlStorage;
@@ -47,8 +48,13 @@ public class MigrationService {
         String user = plugin.getConfig().getString("storage.mariadb.username", "root");
         String pass = plugin.getConfig().getString("storage.mariadb.password", "");
 
-        StorageBackend source = createBackend(fromType, dataFolder, host, port, dbName, user, pass);
-        StorageBackend target = createBackend(toType, dataFolder, host, port, dbName, user, pass);
+        // the running backend is used as is: a second instance on its files would write over it
+        StorageType activeType = StorageType.fromString(plugin.getConfig().getString("storage.type", "sqlite"));
+        StorageBackend live = plugin.getBackend();
+        StorageBackend source = fromType == activeType && live != null
+                ? live : createBackend(fromType, dataFolder, host, port, dbName, user, pass);
+        StorageBackend target = toType == activeType && live != null
+                ? live : createBackend(toType, dataFolder, host, port, dbName, user, pass);
 
         if (source == null || target == null) {
             sender.sendMessage(YOVPlugin.PREFIX + "§cFailed to create backend instances!");
@@ -57,8 +63,8 @@ public class MigrationService {
 
         try {
 
-            source.connect();
-            target.connect();
+            if (source != live) source.connect();
+            if (target != live) target.connect();
 
             sender.sendMessage(YOVPlugin.PREFIX + "§eCollecting entries from source...");
 
@@ -84,7 +90,7 @@ public class MigrationService {
                 sender.sendMessage(YOVPlugin.PREFIX + "§eReloading cache...");
 
                 VariableCache cache = plugin.getVariableCache();
-                cache.getMap().clear();
+                cache.clear();
                 cache.loadFromDatabase(target);
 
                 sender.sendMessage(YOVPlugin.PREFIX + "§aCache successfully reloaded!");
@@ -101,8 +107,8 @@ public class MigrationService {
             plugin.getLogger().log(Level.SEVERE, "Migration error", e);
 
         } finally {
-            try { source.close(); } catch (Exception ignored) {}
-            try { target.close(); } catch (Exception ignored) {}
+            if (source != live) try { source.close(); } catch (Exception ignored) {}
+            if (target != live) try { target.close(); } catch (Exception ignored) {}
         }
     }
 
@@ -119,6 +125,9 @@ public class MigrationService {
             case SQLITE ->
                     new SqliteStorage(dataFolder);
 
+            case LOG ->
+                    new LogStorage(dataFolder);
+
             case MARIADB ->
                     new SqlStorage("mariadb", host, port, database, user, pass);
         };
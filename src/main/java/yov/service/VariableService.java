@@ -1,16 +1,33 @@
 package yov.service;
 
 import org.bukkit.command.CommandSender;
+import yov.async.CacheLoader;
+import yov.async.IoExecutor;
+import yov.async.WritePriority;
 import yov.async.WriteQueue;
+import yov.cache.CachedValue;
+import yov.cache.StripedCounter;
 import yov.cache.VariableCache;
+import yov.math.Expression;
+import yov.math.NumericEngine;
+import yov.storage.BulkAction;
+import yov.storage.KeyPattern;
 import yov.storage.StorageBackend;
 
+import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,23 +38,51 @@ public class VariableService {
     private final Logger logger;
     private final String prefix;
     private final WriteQueue writeQueue;
+    private final CacheLoader cacheLoader;
+    private final IoExecutor io;
+    private final boolean staleWhileRevalidate;
 
     private final Map<String, Long> localWriteTimes = new ConcurrentHashMap<>();
     private final Map<String, Long> backendSyncTimes = new ConcurrentHashMap<>();
     private static final long LOCAL_WRITE_PROTECT_MS = 1000L;
     private static final long BACKEND_SYNC_COOLDOWN_MS = 1000L;
     private volatile boolean shuttingDown = false;
+    private volatile boolean changeLogActive = false;
+
+    private volatile boolean boundedCache = false;
+    private long evictGraceMs;
+    private final Set<String> onlinePlayers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> offlineSince = new ConcurrentHashMap<>();
+    private final Map<String, Long> transientAccess = new ConcurrentHashMap<>();
+    private static final long TRANSIENT_TOUCH_INTERVAL_MS = 1000L;
+
+    // add/rem on keys updated this often per second go to a striped counter instead of the cache entry
+    private volatile int hotThreshold = 0;
+    private final Map<String, LongAdder> updateCounts = new ConcurrentHashMap<>();
+    private final Map<String, StripedCounter> hotCounters = new ConcurrentHashMap<>();
+    private static final int MAX_HOT_COUNTERS = 1024;
+    private static final long MAX_STRIPED_DELTA = 1L << 40;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
 
     public VariableService(StorageBackend backend,
                            VariableCache cache,
                            Logger logger,
                            String prefix,
-                           WriteQueue writeQueue) {
+                           WriteQueue writeQueue,
+                           IoExecutor io,
+                           boolean staleWhileRevalidate,
+                           long refreshBatchWindowMs) {
         this.backend = backend;
         this.cache = cache;
         this.logger = logger;
         this.prefix = prefix;
         this.writeQueue = writeQueue;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.io = io;
+        this.cacheLoader = new CacheLoader(backend, logger, this::applyLoadedValue, io, refreshBatchWindowMs);
+        writeQueue.setDeltaListener(this::applyStoredDelta);
     }
 
     public WriteQueue getWriteQueue() {
@@ -48,6 +93,206 @@ public class VariableService {
         this.shuttingDown = shuttingDown;
     }
 
+    public void setChangeLogActive(boolean changeLogActive) {
+        this.changeLogActive = changeLogActive;
+    }
+
+    public void enableBoundedCache(long evictGraceMs) {
+        this.evictGraceMs = Math.max(0L, evictGraceMs);
+        this.boundedCache = true;
+        cacheLoader.scheduleMaintenance(this::evictInactive, Math.max(1000L, Math.min(this.evictGraceMs, 10_000L)));
+    }
+
+    public void enableHotCounters(int updatesPerSecond, long foldIntervalMs) {
+        if (updatesPerSecond <= 0) return;
+        this.hotThreshold = updatesPerSecond;
+        cacheLoader.scheduleMaintenance(this::foldHotCounters, Math.max(10L, foldIntervalMs));
+        cacheLoader.scheduleMaintenance(this::reviewHotKeys, 1000L);
+    }
+
+    private void recordUpdate(String key) {
+        if (hotThreshold <= 0) return;
+
+        LongAdder count = updateCounts.get(key);
+        if (count == null) {
+            LongAdder created = new LongAdder();
+            count = updateCounts.putIfAbsent(key, created);
+            if (count == null) count = created;
+        }
+        count.increment();
+    }
+
+    private void reviewHotKeys() {
+        int threshold = hotThreshold;
+
+        for (Map.Entry<String, LongAdder> e : updateCounts.entrySet()) {
+            String key = e.getKey();
+            long updates = e.getValue().sumThenReset();
+
+            if (!hotCounters.containsKey(key)) {
+                if (updates >= threshold && hotCounters.size() < MAX_HOT_COUNTERS) {
+                    hotCounters.putIfAbsent(key, new StripedCounter());
+                }
+            } else if (updates < threshold / 4) {
+                demoteHot(key);
+            }
+
+            if (updates == 0) updateCounts.remove(key, e.getValue());
+        }
+    }
+
+    private void foldHotCounters() {
+        for (Map.Entry<String, StripedCounter> e : hotCounters.entrySet()) {
+            foldHot(e.getKey(), e.getValue());
+        }
+    }
+
+    // the fold is written with the most urgent priority among the adds it carries
+    private void foldHot(String key, StripedCounter counter) {
+        counter.fold((sum, rank) -> {
+            CachedValue change = CachedValue.ofDecimal(sum);
+            WritePriority priority = rank != StripedCounter.NO_RANK ? WritePriority.values()[rank] : WritePriority.BACKGROUND;
+            cache.compute(key, (k, old) -> {
+                CachedValue r = NumericEngine.apply(NumericEngine.Op.ADD, old != null ? old : CachedValue.ofLong(0L), change);
+                if (r == null) return old;
+                enqueue(k, r, null, sum, priority);
+                return r;
+            });
+            markLocalWrite(key);
+        });
+    }
+
+    // increments made before a set, delete or absolute update land before it
+    private void settleHot(String key) {
+        StripedCounter counter = hotCounters.isEmpty() ? null : hotCounters.get(key);
+        if (counter != null) foldHot(key, counter);
+    }
+
+    private void demoteHot(String key) {
+        StripedCounter counter = hotCounters.remove(key);
+        if (counter == null) return;
+        counter.retire();
+        foldHot(key, counter);
+    }
+
+    private CachedValue readCached(String key) {
+        StripedCounter counter = hotCounters.isEmpty() ? null : hotCounters.get(key);
+        return counter == null ? cache.getValue(key) : counter.read(() -> cache.getValue(key));
+    }
+
+    public int getHotCounterCount() {
+        return hotCounters.size();
+    }
+
+    public void playerJoined(String playerName) {
+        if (playerName == null || playerName.isEmpty()) return;
+
+        if (boundedCache) {
+            String player = playerName.toLowerCase(Locale.ROOT);
+            onlinePlayers.add(player);
+            offlineSince.remove(player);
+        }
+
+        syncPlayerFromStorage(playerName);
+
+        if (boundedCache) {
+            for (String key : cache.getPlayerKeys(playerName)) {
+                transientAccess.remove(key);
+            }
+        }
+    }
+
+    public void playerQuit(String playerName) {
+        flushNow();
+
+        if (boundedCache && playerName != null) {
+            String player = playerName.toLowerCase(Locale.ROOT);
+            onlinePlayers.remove(player);
+            offlineSince.put(player, System.currentTimeMillis());
+        }
+    }
+
+    // player names may contain '_', so every prefix ending before one is a candidate
+    private boolean isResidentKey(String key) {
+        int idx = key.indexOf('_');
+        if (idx < 0) return true;
+        while (idx >= 0) {
+            if (onlinePlayers.contains(key.substring(0, idx))) return true;
+            idx = key.indexOf('_', idx + 1);
+        }
+        return false;
+    }
+
+    private void trackResidency(String key) {
+        if (!boundedCache || key == null) return;
+
+        long now = System.currentTimeMillis();
+        Long last = transientAccess.get(key);
+        if (last != null) {
+            if (now - last >= TRANSIENT_TOUCH_INTERVAL_MS) transientAccess.put(key, now);
+        } else if (!isResidentKey(key)) {
+            transientAccess.put(key, now);
+        }
+    }
+
+    private void evictInactive() {
+        if (!boundedCache || shuttingDown) return;
+
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<String, Long>> players = offlineSince.entrySet().iterator();
+        while (players.hasNext()) {
+            Map.Entry<String, Long> e = players.next();
+            if (now - e.getValue() < evictGraceMs) continue;
+
+            List<String> keys = cache.getPlayerKeys(e.getKey());
+            if (keys.stream().anyMatch(writeQueue::isPending)) continue;
+
+            for (String key : keys) {
+                evictKey(key);
+            }
+            players.remove();
+        }
+
+        Iterator<Map.Entry<String, Long>> transients = transientAccess.entrySet().iterator();
+        while (transients.hasNext()) {
+            Map.Entry<String, Long> e = transients.next();
+            if (now - e.getValue() < evictGraceMs || writeQueue.isPending(e.getKey())) continue;
+
+            evictKey(e.getKey());
+            transients.remove();
+        }
+    }
+
+    private void ensureLoaded(String key) {
+        if (!boundedCache || cache.getValue(key) != null || writeQueue.isPending(key)) return;
+
+        try {
+            String value = backend.get(key);
+            if (value != null) {
+                cache.compute(key, (k, old) -> old != null ? old : CachedValue.of(value));
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error loading variable '" + key + "' from backend", e);
+        }
+    }
+
+    private void evictKey(String key) {
+        demoteHot(key);
+        cache.remove(key);
+        localWriteTimes.remove(key);
+        backendSyncTimes.remove(key);
+        transientAccess.remove(key);
+    }
+
+    public void close() {
+        shuttingDown = true;
+        cacheLoader.close();
+        for (String key : hotCounters.keySet()) {
+            demoteHot(key);
+        }
+    }
+
     private void markLocalWrite(String key) {
         if (key != null) {
             localWriteTimes.put(key, System.currentTimeMillis());
@@ -61,11 +306,10 @@ public class VariableService {
 
         try {
             Map<String, String> fromBackend = backend.getEntriesByPrefix(prefixKey);
-            Map<String, String> map = cache.getMap();
 
-            for (String existingKey : map.keySet()) {
-                if (existingKey != null && existingKey.startsWith(prefixKey) && !fromBackend.containsKey(existingKey)) {
-                    map.remove(existingKey);
+            for (String existingKey : cache.getPlayerKeys(playerName)) {
+                if (!fromBackend.containsKey(existingKey)) {
+                    cache.remove(existingKey);
                 }
             }
 
@@ -73,8 +317,8 @@ public class VariableService {
                 String k = e.getKey();
                 String v = e.getValue();
                 if (k == null) continue;
-                if (v == null) map.remove(k);
-                else map.put(k, v);
+                if (v == null) cache.remove(k);
+                else cache.put(k, v);
             }
 
         } catch (Exception e) {
@@ -83,39 +327,67 @@ public class VariableService {
     }
 
 
-    public String getSynchronizedValue(String rawKey) {
+    public String getPlaceholderValue(String rawKey) {
+        CachedValue value = getPlaceholderEntry(rawKey);
+        return value != null ? value.asString() : null;
+    }
+
+    public CachedValue getPlaceholderEntry(String rawKey) {
+        return staleWhileRevalidate ? getCachedEntry(rawKey) : getSynchronizedEntry(rawKey);
+    }
+
+    public String getCachedValue(String rawKey) {
+        CachedValue value = getCachedEntry(rawKey);
+        return value != null ? value.asString() : null;
+    }
+
+    public CachedValue getCachedEntry(String rawKey) {
         if (rawKey == null) return null;
 
         String key = rawKey.toLowerCase(Locale.ROOT);
-        String cached = cache.get(key);
+        CachedValue cached = readCached(key);
+        recordLookup(cached);
 
-        if (shuttingDown) {
-            return cached;
+        if (needsBackendSync(key, cached == null)) {
+            cacheLoader.refresh(key);
+        } else if (cached != null) {
+            trackResidency(key);
         }
 
-        long now = System.currentTimeMillis();
+        return cached;
+    }
 
-        Long lastWrite = localWriteTimes.get(key);
-        if (lastWrite != null && now - lastWrite < LOCAL_WRITE_PROTECT_MS) {
-            return cached;
-        }
+    public String getSynchronizedValue(String rawKey) {
+        CachedValue value = getSynchronizedEntry(rawKey);
+        return value != null ? value.asString() : null;
+    }
 
-        Long lastSync = backendSyncTimes.get(key);
-        if (lastSync != null && now - lastSync < BACKEND_SYNC_COOLDOWN_MS) {
+    public CachedValue getSynchronizedEntry(String rawKey) {
+        if (rawKey == null) return null;
+
+        String key = rawKey.toLowerCase(Locale.ROOT);
+        CachedValue cached = readCached(key);
+        recordLookup(cached);
+
+        if (!needsBackendSync(key, cached == null)) {
+            if (cached != null) trackResidency(key);
             return cached;
         }
 
         try {
-            String value = backend.get(key);
-            backendSyncTimes.put(key, now);
+            String value = cacheLoader.load(key);
+            writeQueue.observeStored(key, value);
 
             if (value == null) {
                 cache.remove(key);
+                cache.getNegativeCache().recordMiss(key);
                 return null;
             }
 
-            cache.put(key, value);
-            return value;
+            CachedValue loaded = CachedValue.of(value);
+            cache.putValue(key, loaded);
+            trackResidency(key);
+            return loaded;
 
         } catch (Exception e) {
             if (!(e instanceof SQLException sqlEx
@@ -127,6 +399,114 @@ public class VariableService {
         }
     }
 
+    private void recordLookup(CachedValue cached) {
+        if (cached != null) cacheHits.increment();
+        else cacheMisses.increment();
+    }
+
+    public long estimateDedupSavedBytes() {
+        return cache.estimateSharedBytes(backendSyncTimes.keySet());
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long getBackendLoads() {
+        return cacheLoader.getLoadCount();
+    }
+
+    public long getBackendRoundTrips() {
+        return cacheLoader.getBatchCount();
+    }
+
+    public long getCoalescedLoads() {
+        return cacheLoader.getCoalescedCount();
+    }
+
+    private boolean needsBackendSync(String key, boolean missing) {
+        if (shuttingDown) {
+            return false;
+        }
+
+        // With the change log tailed, only keys that were never loaded into a bounded cache need a read
+        if (changeLogActive && !(missing && boundedCache)) {
+            return false;
+        }
+
+        // The filter covers every loaded key, so with the change log it is exact for resident keys
+        if (missing && cache.getNegativeCache().isKnownAbsent(key, changeLogActive && isResidentKey(key))) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+
+        Long lastWrite = localWriteTimes.get(key);
+        if (lastWrite != null && now - lastWrite < LOCAL_WRITE_PROTECT_MS) {
+            return false;
+        }
+
+        Long lastSync = backendSyncTimes.get(key);
+        if (lastSync != null && now - lastSync < BACKEND_SYNC_COOLDOWN_MS) {
+            return false;
+        }
+
+        backendSyncTimes.put(cache.canonicalKey(key), now);
+        return true;
+    }
+
+    private void applyLoadedValue(String key, String value) {
+        if (shuttingDown) return;
+        writeQueue.observeStored(key, value);
+
+        Long lastWrite = localWriteTimes.get(key);
+        if (lastWrite != null && System.currentTimeMillis() - lastWrite < LOCAL_WRITE_PROTECT_MS) {
+            return;
+        }
+
+        if (value == null) {
+            cache.remove(key);
+            cache.getNegativeCache().recordMiss(key);
+        } else {
+            cache.put(key, value);
+            trackResidency(key);
+        }
+    }
+
+    public void applyRemoteChange(String key, String value) {
+        if (shuttingDown || key == null) return;
+
+        if (writeQueue != null) {
+            writeQueue.observeStored(key, value);
+            if (writeQueue.isPending(key)) return;
+        }
+
+        if (boundedCache && value != null && cache.getValue(key) == null && !isResidentKey(key)) {
+            return;
+        }
+
+        if (value == null) {
+            cache.remove(key);
+        } else {
+            cache.put(key, value);
+        }
+    }
+
+    // storage returns the value after our add/rem was applied there, including other servers' changes
+    private void applyStoredDelta(String key, String value) {
+        if (shuttingDown || value == null) return;
+
+        cache.compute(key, (k, old) -> {
+            if (writeQueue.isPending(k)) return old;
+            if (old == null && boundedCache && !isResidentKey(k)) return null;
+            return old != null && old.asString().equals(value) ? old : CachedValue.of(value);
+        });
+    }
+
     public void flushNow() {
         if (writeQueue == null) return;
         try {
@@ -137,10 +517,17 @@ public class VariableService {
     }
 
     public void setVariable(String key, String value, CommandSender sender, boolean silent) {
+        setVariable(key, value, sender, silent, WritePriority.INTERACTIVE);
+    }
+
+    public void setVariable(String key, String value, CommandSender sender, boolean silent, WritePriority priority) {
+        key = cache.canonicalKey(key);
+        settleHot(key);
         cache.put(key, value);
         markLocalWrite(key);
+        trackResidency(key);
         try {
-            writeQueue.enqueueSet(key, value);
+            writeQueue.enqueueSet(key, value, priority);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error saving variable " + key, e);
         }
@@ -150,10 +537,16 @@ public class VariableService {
     }
 
     public void deleteVariable(String key, CommandSender sender, boolean silent) {
+        deleteVariable(key, sender, silent, WritePriority.INTERACTIVE);
+    }
+
+    public void deleteVariable(String key, CommandSender sender, boolean silent, WritePriority priority) {
+        key = cache.canonicalKey(key);
+        settleHot(key);
         cache.remove(key);
         markLocalWrite(key);
         try {
-            writeQueue.enqueueDelete(key);
+            writeQueue.enqueueDelete(key, priority);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Error deleting variable " + key, e);
         }
@@ -163,125 +556,352 @@ public class VariableService {
     }
 
     public void addVariable(String key, String amountStr, CommandSender sender, boolean silent) {
-        modifyVariable(key, amountStr, sender, silent, true);
+        addVariable(key, amountStr, sender, silent, WritePriority.INTERACTIVE);
+    }
+
+    public void addVariable(String key, String amountStr, CommandSender sender, boolean silent, WritePriority priority) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.ADD, priority);
     }
 
     public void remVariable(String key, String amountStr, CommandSender sender, boolean silent) {
-        modifyVariable(key, amountStr, sender, silent, false);
+        remVariable(key, amountStr, sender, silent, WritePriority.INTERACTIVE);
     }
 
-    private boolean isWholeNumber(String s) {
-        try {
-            Integer.parseInt(s);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
-        }
+    public void remVariable(String key, String amountStr, CommandSender sender, boolean silent, WritePriority priority) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.SUB, priority);
     }
-    private String normalizeDecimal(String s) {
-        if (s == null) return "0";
-        try {
-            java.math.BigDecimal bd = new java.math.BigDecimal(s.trim().replace(',', '.'));
-            bd = bd.setScale(5, java.math.RoundingMode.HALF_UP);
-            bd = bd.stripTrailingZeros();
-            String out = bd.toPlainString();
-            if (out.equals("-0")) out = "0";
-            return out;
-        } catch (Exception ignored) {
-            return s;
-        }
+
+    public void mulVariable(String key, String amountStr, CommandSender sender, boolean silent) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.MUL, WritePriority.INTERACTIVE);
     }
-    private String addDecimal(String a, String b) {
-        java.math.BigDecimal x = new java.math.BigDecimal(a.trim().replace(',', '.'));
-        java.math.BigDecimal y = new java.math.BigDecimal(b.trim().replace(',', '.'));
-        java.math.BigDecimal r = x.add(y).setScale(5, java.math.RoundingMode.HALF_UP).stripTrailingZeros();
-        String out = r.toPlainString();
-        if (out.equals("-0")) out = "0";
-        return out;
+
+    public void divVariable(String key, String amountStr, CommandSender sender, boolean silent) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.DIV, WritePriority.INTERACTIVE);
     }
 
-    private String subDecimal(String a, String b) {
-        java.math.BigDecimal x = new java.math.BigDecimal(a.trim().replace(',', '.'));
-        java.math.BigDecimal y = new java.math.BigDecimal(b.trim().replace(',', '.'));
-        java.math.BigDecimal r = x.subtract(y).setScale(5, java.math.RoundingMode.HALF_UP).stripTrailingZeros();
-        String out = r.toPlainString();
-        if (out.equals("-0")) out = "0";
-        return out;
+    public void minVariable(String key, String amountStr, CommandSender sender, boolean silent) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.MIN, WritePriority.INTERACTIVE);
     }
 
+    public void maxVariable(String key, String amountStr, CommandSender sender, boolean silent) {
+        modifyVariable(key, amountStr, sender, silent, NumericEngine.Op.MAX, WritePriority.INTERACTIVE);
+    }
 
-    private void modifyVariable(String key, String amountStr, CommandSender sender,
-                                boolean silent, boolean isAdd) {
+    public void clampVariable(String key, String minStr, String maxStr, CommandSender sender, boolean silent) {
+        CachedValue min = CachedValue.of(minStr);
+        CachedValue max = CachedValue.of(maxStr);
+        if (!NumericEngine.isNumber(min) || !NumericEngine.isNumber(max)) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: Invalid number.");
+            return;
+        }
 
-        cache.compute(key, (k, oldVal) -> {
+        updateNumeric(key, sender, silent, WritePriority.INTERACTIVE,
+                () -> "clamped to " + NumericEngine.normalize(min) + ".." + NumericEngine.normalize(max),
+                old -> NumericEngine.clamp(old, min, max), null, NumericEngine.NO_FIT);
+    }
 
-            if (oldVal == null) oldVal = "0";
+    private void modifyVariable(String key, String amountStr, CommandSender sender,
+                                boolean silent, NumericEngine.Op op, WritePriority priority) {
 
-            try {
-                if (isWholeNumber(oldVal) && isWholeNumber(amountStr)) {
-                    int current = Integer.parseInt(oldVal);
-                    int delta = Integer.parseInt(amountStr);
-                    int result = isAdd ? current + delta : current - delta;
+        CachedValue amount = CachedValue.of(amountStr);
+        if (!NumericEngine.isNumber(amount)) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: Invalid number.");
+            return;
+        }
+        if (op == NumericEngine.Op.DIV && NumericEngine.isZero(amount)) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: Division by zero.");
+            return;
+        }
 
-                    markLocalWrite(k);
-                    enqueueModify(k, String.valueOf(result));
+        // add and rem go to the queue as fixed point; BigDecimal only for amounts beyond it
+        long unscaled = NumericEngine.toUnscaled(amount);
+        long unscaledDelta = switch (op) {
+            case ADD -> unscaled;
+            case SUB -> unscaled == NumericEngine.NO_FIT ? NumericEngine.NO_FIT : -unscaled;
+            default -> NumericEngine.NO_FIT;
+        };
+        BigDecimal delta = unscaledDelta != NumericEngine.NO_FIT ? null : switch (op) {
+            case ADD -> NumericEngine.toBigDecimal(amount);
+            case SUB -> NumericEngine.toBigDecimal(amount).negate();
+            default -> null;
+        };
+
+        updateNumeric(key, sender, silent, priority, () -> describe(op, amount),
+                old -> NumericEngine.apply(op, old, amount), delta, unscaledDelta);
+    }
 
-                    if (!silent && sender != null) {
-                        sender.sendMessage(prefix + "§aVariable '" + k + "' " +
-                                (isAdd ? "increased" : "decreased") +
-                                " by " + delta + ". New value: " + result);
-                    }
+    private static String describe(NumericEngine.Op op, CachedValue amount) {
+        String shown = NumericEngine.normalize(amount).asString();
+        return switch (op) {
+            case ADD -> "increased by " + shown;
+            case SUB -> "decreased by " + shown;
+            case MUL -> "multiplied by " + shown;
+            case DIV -> "divided by " + shown;
+            case MIN -> "capped at " + shown;
+            case MAX -> "raised to at least " + shown;
+        };
+    }
 
-                    return String.valueOf(result);
-                }
+    // null when the expression cannot be evaluated, or uses $variables without a player
+    public CachedValue evaluate(Expression expression, String playerName) {
+        if (!expression.isValid() || (playerName == null && expression.usesPlayerKeys())) return null;
+        return expression.evaluate(variable -> getPlaceholderEntry(variable.key(playerName)));
+    }
 
-                String current = normalizeDecimal(oldVal);
-                String delta = normalizeDecimal(amountStr);
-                String result = isAdd ? addDecimal(current, delta) : subDecimal(current, delta);
+    public void mathVariable(String key, String expressionStr, String playerName, CommandSender sender, boolean silent) {
+        Expression expression = Expression.compile(expressionStr);
+        if (!expression.isValid()) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: " + expression.getError());
+            return;
+        }
+        if (playerName == null && expression.usesPlayerKeys()) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: $variables need a player.");
+            return;
+        }
 
-                markLocalWrite(k);
-                enqueueModify(k, result);
+        key = cache.canonicalKey(key);
+        ensureLoaded(key);
+        // other variables are read before taking the target's entry lock: a read waiting on a
+        // hot counter's fold while holding it could deadlock with that fold
+        Map<String, CachedValue> others = new HashMap<>();
+        for (Expression.Variable variable : expression.getVariables()) {
+            String other = variable.key(playerName);
+            if (!other.equals(key) && !others.containsKey(other)) {
+                getSynchronizedEntry(other);
+                others.put(other, readCached(other));
+            }
+        }
+        settleHot(key);
+
+        // the target's own value is read under its entry lock, so a formula like "score * 2" cannot lose updates
+        CachedValue[] after = new CachedValue[1];
+        cache.compute(key, (k, old) -> {
+            CachedValue r = expression.evaluate(variable -> {
+                String other = variable.key(playerName);
+                return other.equals(k) ? old : others.get(other);
+            });
+            if (r == null) return old;
+            enqueue(k, r, null, NumericEngine.NO_FIT, WritePriority.INTERACTIVE);
+            after[0] = r;
+            return r;
+        });
 
-                if (!silent && sender != null) {
-                    sender.sendMessage(prefix + "§aVariable '" + k + "' " +
-                            (isAdd ? "increased" : "decreased") +
-                            " by " + delta + ". New value: " + result);
-                }
+        if (after[0] == null) {
+            if (!silent && sender != null) sender.sendMessage(prefix + "§cError: '" + expression + "' is not a number here.");
+            return;
+        }
+        markLocalWrite(key);
+        trackResidency(key);
 
-                return result;
+        if (!silent && sender != null) {
+            sender.sendMessage(prefix + "§aVariable '" + key + "' set to '" + after[0] + "' §7(" + expression + ")");
+        }
+    }
 
-            } catch (Exception e) {
-                if (!silent && sender != null) {
+    // only the queue write happens under the entry lock, so a finished flush never sees the cache
+    // ahead of the queue; messages and bookkeeping run after it, and only when someone reads them
+    private void updateNumeric(String key, CommandSender sender, boolean silent, WritePriority priority,
+                               Supplier<String> description, UnaryOperator<CachedValue> operation,
+                               BigDecimal delta, long unscaledDelta) {
+
+        key = cache.canonicalKey(key);
+        ensureLoaded(key);
+        recordUpdate(key);
+
+        boolean tell = !silent && sender != null;
+        CachedValue result;
+        if (unscaledDelta != NumericEngine.NO_FIT && tryStripedAdd(key, unscaledDelta, priority)) {
+            result = tell ? readCached(key) : null;
+        } else {
+            if (delta == null && unscaledDelta == NumericEngine.NO_FIT) settleHot(key);
+
+            CachedValue[] after = new CachedValue[1];
+            cache.compute(key, (k, oldVal) -> {
+                CachedValue r = operation.apply(oldVal != null ? oldVal : CachedValue.ofLong(0L));
+                if (r == null) return oldVal;
+                enqueue(k, r, delta, unscaledDelta, priority);
+                after[0] = r;
+                return r;
+            });
+            result = after[0];
+
+            if (result == null) {
+                if (tell) {
                     sender.sendMessage(prefix + "§cError: Invalid number.");
                 }
-                return oldVal;
+                return;
             }
-        });
+            markLocalWrite(key);
+        }
+
+        if (tell) {
+            sender.sendMessage(prefix + "§aVariable '" + key + "' " + description.get() + ". New value: " + result);
+        }
+
+        trackResidency(key);
     }
 
-    private void enqueueModify(String key, String value) {
-        writeQueue.enqueueSet(key, value);
+    // add and rem stay commutative deltas in storage, the others replace the value
+    private void enqueue(String key, CachedValue value, BigDecimal delta, long unscaledDelta, WritePriority priority) {
+        try {
+            if (unscaledDelta != NumericEngine.NO_FIT) writeQueue.enqueueDelta(key, unscaledDelta, priority);
+            else if (delta != null) writeQueue.enqueueDelta(key, delta, priority);
+            else writeQueue.enqueueSet(key, value.asString(), priority);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error saving variable " + key, e);
+        }
     }
 
-    public void clearPlayerVariables(String playerName, CommandSender sender) {
-        String prefixKey = playerName.toLowerCase(Locale.ROOT) + "_";
+    private boolean tryStripedAdd(String key, long unscaled, WritePriority priority) {
+        StripedCounter counter = hotCounters.isEmpty() ? null : hotCounters.get(key);
+        if (counter == null) return false;
+
+        CachedValue base = cache.getValue(key);
+        if (base != null && !base.isNumeric()) return false;
+
+        if (Math.abs(unscaled) >= MAX_STRIPED_DELTA) return false;
+
+        return counter.add(unscaled, priority.ordinal());
+    }
+
+    public void bulkSetVariables(String glob, String value, CommandSender sender) {
+        bulkUpdate(glob, BulkAction.SET, value, null, "set to '" + value + "'", sender);
+    }
+
+    public void bulkDeleteVariables(String glob, CommandSender sender) {
+        bulkUpdate(glob, BulkAction.DELETE, null, null, "deleted", sender);
+    }
+
+    public void bulkAddVariables(String glob, String amountStr, CommandSender sender) {
+        bulkModify(glob, amountStr, false, sender);
+    }
+
+    public void bulkRemVariables(String glob, String amountStr, CommandSender sender) {
+        bulkModify(glob, amountStr, true, sender);
+    }
+
+    private void bulkModify(String glob, String amountStr, boolean negate, CommandSender sender) {
+        CachedValue amount = CachedValue.of(amountStr);
+        if (!NumericEngine.isNumber(amount)) {
+            sender.sendMessage(prefix + "§cError: Invalid number.");
+            return;
+        }
+
+        CachedValue shown = NumericEngine.normalize(amount);
+        BigDecimal delta = NumericEngine.toBigDecimal(amount);
+        if (negate) delta = delta.negate();
+        CachedValue change = NumericEngine.apply(negate ? NumericEngine.Op.SUB : NumericEngine.Op.ADD, CachedValue.ofLong(0L), shown);
 
-        Map<String, String> map = cache.getMap();
-        List<String> toRemove = new ArrayList<>();
+        bulkUpdate(glob, BulkAction.ADD, delta.toPlainString(), change,
+                (negate ? "decreased by " : "increased by ") + shown, sender);
+    }
 
-        for (String key : map.keySet()) {
-            if (key.startsWith(prefixKey)) {
-                toRemove.add(key);
+    // storage takes the change as one statement, then the cache and the queue are brought in line in
+    // one pass; no flush runs in between, so a queued set cannot undo the statement
+    private void bulkUpdate(String glob, BulkAction action, String value, CachedValue change,
+                            String description, CommandSender sender) {
+
+        KeyPattern pattern = KeyPattern.compile(glob);
+        if (!pattern.hasLiteral()) {
+            sender.sendMessage(prefix + "§cError: The pattern must contain more than wildcards.");
+            return;
+        }
+        if (writeQueue.getSpilledCount() > 0) {
+            sender.sendMessage(prefix + "§cError: Queued writes are spilled to disk, try again once they are written.");
+            return;
+        }
+
+        Runnable task = () -> {
+            try {
+                int[] counts = writeQueue.runExclusive(() -> applyBulk(pattern, action, value, change));
+                sender.sendMessage(prefix + "§aVariables matching '" + pattern + "' " + description +
+                        ": §e" + counts[0] + " §astored, §e" + counts[1] + " §acached.");
+            } catch (IllegalStateException e) {
+                sender.sendMessage(prefix + "§cError: " + e.getMessage() + ", try again once they are written.");
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Error applying bulk change to " + pattern, e);
+                sender.sendMessage(prefix + "§cError: Bulk change failed, see console.");
             }
+        };
+
+        try {
+            io.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private int[] applyBulk(KeyPattern pattern, BulkAction action, String value, CachedValue change) throws Exception {
+        List<String> cached = cache.findKeys(pattern);
+        for (String key : cached) {
+            demoteHot(key);
         }
 
+        // queued sets of keys the cache no longer holds would otherwise land after the statement unchanged
+        List<String> queued = new ArrayList<>();
+        writeQueue.forEachPending((key, pendingValue) -> {
+            if (pendingValue != null && pattern.matches(key) && cache.getValue(key) == null) queued.add(key);
+        });
+
+        writeQueue.forgetPersisted(pattern::matches);
+        int stored = backend.bulkApply(pattern, action, value);
+
+        int changed = 0;
+        for (String key : cached) {
+            boolean[] hit = new boolean[1];
+            cache.compute(key, (k, old) -> {
+                if (old == null) return null;
+                CachedValue updated = switch (action) {
+                    case SET -> CachedValue.of(value);
+                    case DELETE -> null;
+                    case ADD -> NumericEngine.apply(NumericEngine.Op.ADD, old, change);
+                };
+                if (action == BulkAction.ADD && updated == null) return old;
+
+                hit[0] = true;
+                requeueBulk(k, action, value);
+                return updated;
+            });
+            if (hit[0]) {
+                markLocalWrite(key);
+                changed++;
+            }
+        }
+
+        for (String key : queued) {
+            requeueBulk(key, action, value);
+        }
+
+        return new int[]{stored, changed};
+    }
+
+    // a queued delta still adds on top of the statement, only queued sets and deletes need the change too
+    private void requeueBulk(String key, BulkAction action, String value) {
+        if (action == BulkAction.ADD ? !writeQueue.hasPendingValue(key) : !writeQueue.isPending(key)) {
+            return;
+        }
+        try {
+            switch (action) {
+                case SET -> writeQueue.enqueueSet(key, value, WritePriority.BULK);
+                case DELETE -> writeQueue.enqueueDelete(key, WritePriority.BULK);
+                case ADD -> writeQueue.enqueueDelta(key, new BigDecimal(value), WritePriority.BULK);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error saving variable " + key, e);
+        }
+    }
+
+    public void clearPlayerVariables(String playerName, CommandSender sender) {
+        List<String> toRemove = cache.getPlayerKeys(playerName);
+
         int removed = 0;
 
         for (String key : toRemove) {
+            demoteHot(key);
             cache.remove(key);
             markLocalWrite(key);
             try {
-                writeQueue.enqueueDelete(key);
+                writeQueue.enqueueDelete(key, WritePriority.BULK);
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Error deleting variable " + key + " for userclear", e);
             }
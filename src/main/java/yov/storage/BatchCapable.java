@@ -3,4 +3,8 @@ package yov.storage;
 public interface BatchCapable {
     void beginBatch() throws Exception;
     void endBatch() throws Exception;
+
+    default void abortBatch() throws Exception {
+        endBatch();
+    }
 }
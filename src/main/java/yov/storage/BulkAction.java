@@ -0,0 +1,8 @@
+package yov.storage;
+
+public enum BulkAction {
+    SET,
+    // value is the amount, negative for rem
+    ADD,
+    DELETE
+}
@@ -0,0 +1,23 @@
+package yov.storage;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+public interface ChangeLogCapable {
+
+    boolean isChangeLogEnabled();
+
+    long getChangeLogStride();
+
+    long getChangeLogHead() throws Exception;
+
+    List<ChangeLogEntry> readChanges(long afterVersion, int limit) throws Exception;
+
+    List<ChangeLogEntry> readVersions(Collection<Long> versions) throws Exception;
+
+    void appendChanges(Connection conn, Map<String, String> changes) throws Exception;
+
+    void pruneChangeLog(long olderThanMillis) throws Exception;
+}
@@ -0,0 +1,4 @@
+package yov.storage;
+
+public record ChangeLogEntry(long version, String key, String value) {
+}
@@ -0,0 +1,18 @@
+package yov.storage;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+// storage that records, in the transaction applying them, which journaled deltas it applied,
+// so a journal replay after a crash leaves out the ones that already went through
+public interface DeltaLedger {
+
+    // sequences: the highest journal sequence summed into each key's delta
+    Map<String, String> applyDeltas(Map<String, BigDecimal> deltas, String journalId, Map<String, Long> sequences) throws Exception;
+
+    // key -> highest sequence applied from that journal
+    Map<String, Long> readAppliedSequences(String journalId) throws Exception;
+
+    // drops what was recorded up to a sequence whose journal records are all gone
+    void pruneAppliedSequences(String journalId, long upTo) throws Exception;
+}
@@ -0,0 +1,95 @@
+package yov.storage;
+
+import java.util.Locale;
+
+// a key glob: '*' matches any run of characters, '?' exactly one
+public final class KeyPattern {
+
+    public static final char LIKE_ESCAPE = '!';
+
+    private final String glob;
+    private final String literalPrefix;
+
+    private KeyPattern(String glob) {
+        this.glob = glob;
+
+        int end = 0;
+        while (end < glob.length() && !isWildcard(glob.charAt(end))) end++;
+        this.literalPrefix = glob.substring(0, end);
+    }
+
+    public static KeyPattern compile(String glob) {
+        return new KeyPattern(glob.toLowerCase(Locale.ROOT));
+    }
+
+    public String getGlob() {
+        return glob;
+    }
+
+    // everything before the first wildcard, narrows lookups to a range of the sorted key index
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    public boolean hasLiteral() {
+        for (int i = 0; i < glob.length(); i++) {
+            if (!isWildcard(glob.charAt(i))) return true;
+        }
+        return false;
+    }
+
+    public boolean matches(String key) {
+        if (key == null || !key.startsWith(literalPrefix)) return false;
+
+        // greedy with backtracking to the last '*'
+        int k = 0;
+        int g = 0;
+        int star = -1;
+        int resume = 0;
+        while (k < key.length()) {
+            if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == key.charAt(k))) {
+                k++;
+                g++;
+            } else if (g < glob.length() && glob.charAt(g) == '*') {
+                star = g++;
+                resume = k;
+            } else if (star >= 0) {
+                g = star + 1;
+                k = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') g++;
+        return g == glob.length();
+    }
+
+    // for LIKE ... ESCAPE '!'
+    public String toLike() {
+        StringBuilder sb = new StringBuilder(glob.length() + 4);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> sb.append('%');
+                case '?' -> sb.append('_');
+                case '%', '_', LIKE_ESCAPE -> sb.append(LIKE_ESCAPE).append(c);
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // SQLite's GLOB has the same wildcards and is case sensitive, so it can use the key index
+    public String toSqliteGlob() {
+        return glob.replace("[", "[[]");
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '?';
+    }
+}
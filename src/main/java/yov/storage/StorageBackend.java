@@ -1,7 +1,10 @@
 package yov.storage;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,8 +17,85 @@ public interface StorageBackend {
 
     String get(String key) throws Exception;
 
+    default Map<String, String> getMany(Collection<String> keys) throws Exception {
+        Map<String, String> out = new HashMap<>();
+        if (keys == null) return out;
+        for (String key : keys) {
+            if (key == null) continue;
+            String val = get(key);
+            if (val != null) out.put(key, val);
+        }
+        return out;
+    }
+
     void delete(String key) throws Exception;
 
+    // adds each amount to the stored number (missing counts as 0) and returns the stored results;
+    // non-numeric values are left alone and returned as they are
+    default Map<String, String> applyDeltas(Map<String, BigDecimal> deltas) throws Exception {
+        Map<String, String> out = new HashMap<>();
+        for (Map.Entry<String, BigDecimal> e : deltas.entrySet()) {
+            String current = get(e.getKey());
+            String updated = addDelta(current, e.getValue());
+            if (updated == null) {
+                if (current != null) out.put(e.getKey(), current);
+                continue;
+            }
+            set(e.getKey(), updated);
+            out.put(e.getKey(), updated);
+        }
+        return out;
+    }
+
+    static String addDelta(String current, BigDecimal delta) {
+        BigDecimal base;
+        if (current == null) {
+            base = BigDecimal.ZERO;
+        } else {
+            try {
+                base = new BigDecimal(current.trim().replace(',', '.'));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return base.setScale(5, RoundingMode.HALF_UP).add(delta).stripTrailingZeros().toPlainString();
+    }
+
+    // null values are deletes
+    default void writeBatch(Map<String, String> changes) throws Exception {
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() == null) delete(e.getKey());
+            else set(e.getKey(), e.getValue());
+        }
+    }
+
+    // one change to every stored key the pattern matches, returns how many were changed;
+    // SET only touches existing keys, ADD leaves non-numeric values alone
+    default int bulkApply(KeyPattern pattern, BulkAction action, String value) throws Exception {
+        Map<String, String> changes = new HashMap<>();
+        for (String key : getKeysByPrefix(pattern.getLiteralPrefix())) {
+            if (pattern.matches(key)) changes.put(key, null);
+        }
+        if (changes.isEmpty()) return 0;
+
+        switch (action) {
+            case SET -> changes.replaceAll((k, v) -> value);
+            case ADD -> {
+                BigDecimal delta = new BigDecimal(value);
+                Map<String, String> current = getMany(changes.keySet());
+                changes.clear();
+                for (Map.Entry<String, String> e : current.entrySet()) {
+                    String updated = addDelta(e.getValue(), delta);
+                    if (updated != null) changes.put(e.getKey(), updated);
+                }
+            }
+            case DELETE -> {}
+        }
+
+        writeBatch(changes);
+        return changes.size();
+    }
+
     List<String> getAllKeys() throws Exception;
 
     default List<String> getKeysByPrefix(String prefix) throws Exception {
@@ -30,24 +110,25 @@ public interface StorageBackend {
     }
 
     default Map<String, String> getAllEntries() throws Exception {
+        return getMany(getAllKeys());
+    }
+
+    default Map<String, String> getGlobalEntries() throws Exception {
         Map<String, String> out = new HashMap<>();
-        for (String key : getAllKeys()) {
-            if (key == null) continue;
-            String val = get(key);
-            if (val != null) out.put(key, val);
+        for (Map.Entry<String, String> e : getAllEntries().entrySet()) {
+            if (e.getKey().indexOf('_') < 0) out.put(e.getKey(), e.getValue());
         }
         return out;
     }
 
     default Map<String, String> getEntriesByPrefix(String prefix) throws Exception {
-        Map<String, String> out = new HashMap<>();
-        if (prefix == null) return out;
-        for (String key : getKeysByPrefix(prefix)) {
-            if (key == null) continue;
-            String val = get(key);
-            if (val != null) out.put(key, val);
-        }
-        return out;
+        if (prefix == null) return new HashMap<>();
+        return getMany(getKeysByPrefix(prefix));
+    }
+
+    // how many write transactions may run at the same time
+    default int getMaxWriteConcurrency() {
+        return 1;
     }
 
     Connection getConnection() throws Exception;
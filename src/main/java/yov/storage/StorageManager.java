@@ -1,5 +1,6 @@
 package yov.storage;
 
+import yov.storage.impl.LogStorage;
 import yov.storage.impl.SqlStorage;
 import yov.storage.impl.SqliteStorage;
 import yov.storage.impl.YamlStorage;
@@ -23,6 +24,7 @@ public class StorageManager {
         backend = switch (storageType) {
             case YAML   -> new YamlStorage(dataFolder);
             case SQLITE -> new SqliteStorage(dataFolder);
+            case LOG    -> new LogStorage(dataFolder);
             case MARIADB -> new SqlStorage("mariadb", host, port, database, user, pass);
         };
     }
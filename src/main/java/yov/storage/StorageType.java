@@ -3,13 +3,15 @@ package yov.storage;
 public enum StorageType {
     SQLITE,
     MARIADB,
-    YAML;
+    YAML,
+    LOG;
 
     public static StorageType fromString(String s) {
         if (s == null) return SQLITE;
         return switch (s.toLowerCase()) {
             case "mariadb" -> MARIADB;
             case "yaml", "yml" -> YAML;
+            case "log" -> LOG;
             case "sqlite" -> SQLITE;
             default -> SQLITE;
         };
@@ -0,0 +1,256 @@
+package yov.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+// open addressing hash table in a memory-mapped file: key hash -> record location, linear probing.
+// Equal hashes are told apart by the caller reading the key at the location.
+// The header remembers where the log ended when the index was last written out cleanly.
+final class LogIndex {
+
+    private static final long MAGIC = 0x594F56494E444558L;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 1 << 14;
+    // a mapping is limited to 2 GiB and slot offsets are ints
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private static final int POS_CAPACITY = 8;
+    private static final int POS_COUNT = 16;
+    private static final int POS_CLEAN = 24;
+    private static final int POS_SEGMENT = 28;
+    private static final int POS_SEGMENT_SIZE = 32;
+    private static final int POS_LIVE_BYTES = 40;
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int mask;
+    private int count;
+
+    private LogIndex(File file, MappedByteBuffer map, int capacity, int count) {
+        this.file = file;
+        this.map = map;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.count = count;
+    }
+
+    static File fileFor(File dir, int capacity) {
+        return new File(dir, "index-" + capacity + ".idx");
+    }
+
+    static LogIndex create(File dir, long expectedKeys) throws IOException {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity * 0.7 < expectedKeys) capacity <<= 1;
+
+        File file = fileFor(dir, capacity);
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+
+        MappedByteBuffer map = map(file, capacity);
+        map.putLong(0, MAGIC);
+        map.putLong(POS_CAPACITY, capacity);
+        return new LogIndex(file, map, capacity, 0);
+    }
+
+    // null unless the file was closed cleanly
+    static LogIndex open(File file) throws IOException {
+        long length = file.length();
+        if (length < HEADER_SIZE || length > HEADER_SIZE + (long) MAX_CAPACITY * SLOT_SIZE) return null;
+
+        MappedByteBuffer map = map(file, (int) ((length - HEADER_SIZE) / SLOT_SIZE));
+        long capacity = map.getLong(POS_CAPACITY);
+        if (map.getLong(0) != MAGIC || map.getInt(POS_CLEAN) != 1
+                || capacity < MIN_CAPACITY || capacity > MAX_CAPACITY || Long.bitCount(capacity) != 1
+                || length != HEADER_SIZE + capacity * SLOT_SIZE) {
+            return null;
+        }
+        return new LogIndex(file, map, (int) capacity, (int) map.getLong(POS_COUNT));
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count + 1 > capacity * 0.7;
+    }
+
+    int getCheckpointSegment() {
+        return map.getInt(POS_SEGMENT);
+    }
+
+    long getCheckpointSize() {
+        return map.getLong(POS_SEGMENT_SIZE);
+    }
+
+    long getLiveBytes() {
+        return map.getLong(POS_LIVE_BYTES);
+    }
+
+    // from here on the file may not match the log until the next checkpoint
+    void markDirty() {
+        map.putInt(POS_CLEAN, 0);
+        map.force(0, HEADER_SIZE);
+    }
+
+    void checkpoint(int segment, long segmentSize, long liveBytes) {
+        map.putLong(POS_COUNT, count);
+        map.putInt(POS_SEGMENT, segment);
+        map.putLong(POS_SEGMENT_SIZE, segmentSize);
+        map.putLong(POS_LIVE_BYTES, liveBytes);
+        map.force();
+        map.putInt(POS_CLEAN, 1);
+        map.force(0, HEADER_SIZE);
+    }
+
+    // -1 when absent
+    long get(long hash, LongPredicate sameKey) {
+        hash = nonZero(hash);
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long h = hashAt(i);
+            if (h == 0L) return -1L;
+            if (h == hash) {
+                long location = locationAt(i);
+                if (sameKey.test(location)) return location;
+            }
+        }
+    }
+
+    // returns the location replaced, or -1; the caller grows a full index first
+    long put(long hash, long location, LongPredicate sameKey) {
+        hash = nonZero(hash);
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long h = hashAt(i);
+            if (h == 0L) {
+                setSlot(i, hash, location);
+                count++;
+                return -1L;
+            }
+            if (h == hash) {
+                long previous = locationAt(i);
+                if (sameKey.test(previous)) {
+                    setSlot(i, hash, location);
+                    return previous;
+                }
+            }
+        }
+    }
+
+    long remove(long hash, LongPredicate sameKey) {
+        hash = nonZero(hash);
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long h = hashAt(i);
+            if (h == 0L) return -1L;
+            if (h == hash) {
+                long previous = locationAt(i);
+                if (sameKey.test(previous)) {
+                    removeSlot(i);
+                    return previous;
+                }
+            }
+        }
+    }
+
+    boolean contains(long hash, long location) {
+        return get(hash, l -> l == location) == location;
+    }
+
+    // points the key at its copy, unless it was overwritten or deleted since the copy was made
+    boolean relocate(long hash, long from, long to) {
+        hash = nonZero(hash);
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long h = hashAt(i);
+            if (h == 0L) return false;
+            if (h == hash && locationAt(i) == from) {
+                setSlot(i, hash, to);
+                return true;
+            }
+        }
+    }
+
+    void forEach(LongConsumer location) {
+        for (int i = 0; i < capacity; i++) {
+            if (hashAt(i) != 0L) location.accept(locationAt(i));
+        }
+    }
+
+    // a new file twice the size; the hashes are kept, so no key is read
+    LogIndex grow(File dir) throws IOException {
+        if (capacity >= MAX_CAPACITY) throw new IOException("Log index is full (" + count + " keys)");
+
+        int newCapacity = capacity << 1;
+        File target = fileFor(dir, newCapacity);
+        if (target.exists() && !target.delete()) throw new IOException("Could not replace " + target);
+
+        LogIndex grown = new LogIndex(target, map(target, newCapacity), newCapacity, 0);
+        grown.map.putLong(0, MAGIC);
+        grown.map.putLong(POS_CAPACITY, newCapacity);
+        for (int i = 0; i < capacity; i++) {
+            long h = hashAt(i);
+            if (h != 0L) grown.insertNew(h, locationAt(i));
+        }
+        return grown;
+    }
+
+    // the mapping stays until it is garbage collected, on Windows the file goes once it is
+    void delete() {
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    private void insertNew(long hash, long location) {
+        int i = (int) hash & mask;
+        while (hashAt(i) != 0L) i = (i + 1) & mask;
+        setSlot(i, hash, location);
+        count++;
+    }
+
+    // backward shift: later slots of the same probe run move up, so lookups never stop at a hole too early
+    private void removeSlot(int i) {
+        int hole = i;
+        for (int j = (i + 1) & mask; ; j = (j + 1) & mask) {
+            long h = hashAt(j);
+            if (h == 0L) break;
+            int home = (int) h & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                setSlot(hole, h, locationAt(j));
+                hole = j;
+            }
+        }
+        setSlot(hole, 0L, 0L);
+        count--;
+    }
+
+    private long hashAt(int i) {
+        return map.getLong(HEADER_SIZE + i * SLOT_SIZE);
+    }
+
+    private long locationAt(int i) {
+        return map.getLong(HEADER_SIZE + i * SLOT_SIZE + 8);
+    }
+
+    private void setSlot(int i, long hash, long location) {
+        map.putLong(HEADER_SIZE + i * SLOT_SIZE, hash);
+        map.putLong(HEADER_SIZE + i * SLOT_SIZE + 8, location);
+    }
+
+    private static long nonZero(long hash) {
+        return hash != 0L ? hash : 1L;
+    }
+}
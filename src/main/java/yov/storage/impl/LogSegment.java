@@ -0,0 +1,345 @@
+package yov.storage.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// one append-only file of the log: an 8 byte header, then records
+// [crc int][type byte][key length int][value length int][key][value], written in groups closed by a COMMIT record.
+// Appends are buffered until flush(), so several can reach the file in one write; reads look in the buffer first.
+final class LogSegment {
+
+    static final int MAGIC = 0x594F564C;
+    static final int HEADER_SIZE = 8;
+    static final byte FLAG_COMPACTED = 1;
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte COMMIT = 3;
+    static final int RECORD_HEADER = 13;
+
+    // enough for the header, key and value of most records in one read
+    private static final int READ_AHEAD = 256;
+
+    interface Visitor {
+        void accept(byte type, byte[] key, byte[] value, long offset, int size) throws IOException;
+    }
+
+    record Record(byte type, byte[] key, byte[] value, int size) {}
+
+    private record Scanned(byte type, byte[] key, byte[] value, long offset, int size) {}
+
+    final int id;
+    final File file;
+    final boolean compacted;
+    private final FileChannel channel;
+
+    // size counts buffered bytes too, written only what is in the file
+    private volatile long size;
+    private volatile long written;
+
+    // appended groups wait in pending; flush() swaps them into inFlight while it writes them out
+    private final Object bufferLock = new Object();
+    private final Object flushLock = new Object();
+    private byte[] pending = new byte[4096];
+    private int pendingLength = 0;
+    private byte[] inFlight;
+    private int inFlightLength = 0;
+    private byte[] spare;
+
+    private LogSegment(int id, File file, boolean compacted, FileChannel channel, long size) {
+        this.id = id;
+        this.file = file;
+        this.compacted = compacted;
+        this.channel = channel;
+        this.size = size;
+        this.written = size;
+    }
+
+    static String name(int id) {
+        return String.format("%08d.seg", id);
+    }
+
+    static LogSegment create(File file, int id, boolean compacted) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC).put(4, compacted ? FLAG_COMPACTED : 0);
+        while (header.hasRemaining()) channel.write(header, header.position());
+        return new LogSegment(id, file, compacted, channel, HEADER_SIZE);
+    }
+
+    static LogSegment open(File file, int id) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0L);
+        if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a log segment: " + file);
+        }
+        return new LogSegment(id, file, header.get(4) == FLAG_COMPACTED, channel, channel.size());
+    }
+
+    long size() {
+        return size;
+    }
+
+    // callers serialize appends; the data is readable at once and in the file after the next flush()
+    long append(ByteBuffer data) {
+        synchronized (bufferLock) {
+            int n = data.remaining();
+            if (pending.length - pendingLength < n) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + n));
+            }
+            data.get(pending, pendingLength, n);
+            pendingLength += n;
+
+            long start = size;
+            size = start + n;
+            return start;
+        }
+    }
+
+    // one write for everything appended so far; appends go on into a fresh buffer meanwhile
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            byte[] data;
+            int length;
+            long pos;
+            synchronized (bufferLock) {
+                if (pendingLength == 0) return;
+                data = pending;
+                length = pendingLength;
+                pos = written;
+                inFlight = data;
+                inFlightLength = length;
+                pending = spare != null ? spare : new byte[4096];
+                pendingLength = 0;
+                spare = null;
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+            long at = pos;
+            try {
+                while (buf.hasRemaining()) {
+                    at += channel.write(buf, at);
+                }
+            } catch (IOException | RuntimeException e) {
+                // the bytes go back in front of what was appended meanwhile, so every offset handed out
+                // still holds; the next flush writes them again from written over any partial write
+                synchronized (bufferLock) {
+                    byte[] restored = new byte[Math.max(4096, length + pendingLength)];
+                    System.arraycopy(data, 0, restored, 0, length);
+                    System.arraycopy(pending, 0, restored, length, pendingLength);
+                    pending = restored;
+                    pendingLength += length;
+                    inFlight = null;
+                    inFlightLength = 0;
+                }
+                throw e;
+            }
+
+            synchronized (bufferLock) {
+                written = pos + length;
+                inFlight = null;
+                inFlightLength = 0;
+                // a buffer grown for one huge batch is not kept around
+                if (data.length <= 1 << 20) spare = data;
+            }
+        }
+    }
+
+    // drops what was appended from offset on; only for bytes that no flush has written yet
+    void discard(long offset) {
+        synchronized (bufferLock) {
+            long unwritten = offset - written - inFlightLength;
+            if (unwritten < 0 || unwritten > pendingLength) throw new IllegalStateException("Bytes at " + offset + " are already written");
+            pendingLength = (int) unwritten;
+            size = offset;
+        }
+    }
+
+    // key only when withValue is false; null when the bytes there are not a whole record
+    Record read(long offset, boolean withValue) throws IOException {
+        if (offset >= written) {
+            synchronized (bufferLock) {
+                if (offset >= written) {
+                    int at = (int) (offset - written);
+                    if (inFlight != null && at < inFlightLength) return decode(ByteBuffer.wrap(inFlight, 0, inFlightLength), at, withValue);
+                    if (inFlight != null) at -= inFlightLength;
+                    return decode(ByteBuffer.wrap(pending, 0, pendingLength), at, withValue);
+                }
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(READ_AHEAD);
+        int n = channel.read(buf, offset);
+        if (n < RECORD_HEADER) return null;
+
+        byte type = buf.get(4);
+        int keyLen = buf.getInt(5);
+        int valueLen = buf.getInt(9);
+        int recordSize = RECORD_HEADER + keyLen + Math.max(valueLen, 0);
+        int wanted = withValue ? recordSize : RECORD_HEADER + keyLen;
+
+        if (wanted > n) {
+            ByteBuffer rest = ByteBuffer.allocate(wanted);
+            buf.flip();
+            rest.put(buf);
+            readFully(channel, rest, offset + n);
+            buf = rest;
+        }
+
+        byte[] key = new byte[keyLen];
+        buf.get(RECORD_HEADER, key);
+        byte[] value = null;
+        if (withValue && valueLen >= 0) {
+            value = new byte[valueLen];
+            buf.get(RECORD_HEADER + keyLen, value);
+        }
+        return new Record(type, key, value, recordSize);
+    }
+
+    private static Record decode(ByteBuffer buf, int at, boolean withValue) {
+        if (at + RECORD_HEADER > buf.limit()) return null;
+        byte type = buf.get(at + 4);
+        int keyLen = buf.getInt(at + 5);
+        int valueLen = buf.getInt(at + 9);
+        int recordSize = RECORD_HEADER + keyLen + Math.max(valueLen, 0);
+        if (at + recordSize > buf.limit()) return null;
+
+        byte[] key = new byte[keyLen];
+        buf.get(at + RECORD_HEADER, key);
+        byte[] value = null;
+        if (withValue && valueLen >= 0) {
+            value = new byte[valueLen];
+            buf.get(at + RECORD_HEADER + keyLen, value);
+        }
+        return new Record(type, key, value, recordSize);
+    }
+
+    // hands out the records of every complete group and returns where the last one ends;
+    // anything after that is a write torn by a crash
+    long scan(Visitor visitor) throws IOException {
+        long end = HEADER_SIZE;
+        long pos = HEADER_SIZE;
+        List<Scanned> group = new ArrayList<>();
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            in.skipNBytes(HEADER_SIZE);
+
+            while (true) {
+                int storedCrc;
+                byte type;
+                byte[] key;
+                byte[] value;
+                try {
+                    storedCrc = in.readInt();
+                    type = in.readByte();
+                    int keyLen = in.readInt();
+                    int valueLen = in.readInt();
+                    if (keyLen < 0 || valueLen < -1 || pos + RECORD_HEADER + keyLen + Math.max(valueLen, 0) > written) break;
+
+                    key = new byte[keyLen];
+                    in.readFully(key);
+                    value = valueLen >= 0 ? new byte[valueLen] : null;
+                    if (value != null) in.readFully(value);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (storedCrc != checksum(crc, type, key, value)) break;
+
+                int recordSize = RECORD_HEADER + key.length + (value != null ? value.length : 0);
+                if (type == COMMIT) {
+                    for (Scanned r : group) {
+                        visitor.accept(r.type(), r.key(), r.value(), r.offset(), r.size());
+                    }
+                    group.clear();
+                    end = pos + recordSize;
+                } else if (type == PUT || type == DELETE) {
+                    group.add(new Scanned(type, key, value, pos, recordSize));
+                } else {
+                    break;
+                }
+                pos += recordSize;
+            }
+        }
+        return end;
+    }
+
+    // only before anything is appended
+    void truncate(long length) throws IOException {
+        channel.truncate(length);
+        size = length;
+        written = length;
+    }
+
+    void force() throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ignored) {
+            // sealed and compacted away in the meantime, it was forced before that
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    static int encode(ByteBuffer buf, CRC32 crc, byte type, byte[] key, byte[] value) {
+        int start = buf.position();
+        buf.putInt(checksum(crc, type, key, value));
+        buf.put(type);
+        buf.putInt(key.length);
+        buf.putInt(value != null ? value.length : -1);
+        buf.put(key);
+        if (value != null) buf.put(value);
+        return buf.position() - start;
+    }
+
+    static int recordSize(byte[] key, byte[] value) {
+        return RECORD_HEADER + key.length + (value != null ? value.length : 0);
+    }
+
+    private static int checksum(CRC32 crc, byte type, byte[] key, byte[] value) {
+        crc.reset();
+        crc.update(type);
+        updateInt(crc, key.length);
+        updateInt(crc, value != null ? value.length : -1);
+        crc.update(key);
+        if (value != null) crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static void updateInt(CRC32 crc, int v) {
+        crc.update(v >>> 24);
+        crc.update(v >>> 16);
+        crc.update(v >>> 8);
+        crc.update(v);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) throw new EOFException("Log segment ends early");
+            pos += n;
+        }
+    }
+}
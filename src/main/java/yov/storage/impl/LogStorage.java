@@ -0,0 +1,834 @@
+package yov.storage.impl;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.java.JavaPlugin;
+import yov.YOVPlugin;
+import yov.storage.StorageBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// key/value log: writes are appended to segment files, a memory-mapped hash index points at the latest record
+// of every key, and segments full of overwritten data are rewritten in the background
+public class LogStorage implements StorageBackend {
+
+    public record Settings(long segmentSizeBytes, double compactRatio, boolean fsync) {}
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int MAX_SEGMENT_ID = (1 << 23) - 1;
+    private static final int COPY_CHUNK = 1 << 20;
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final File dir;
+    private final Settings settings;
+    private final Logger logger;
+
+    // reads share the lock; appends, index changes and segment swaps hold it alone
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private LogSegment active;
+    private LogIndex index;
+    // every key in the index, sorted for prefix reads; filled on the first of them rather than at open,
+    // which would read every record, and kept up to date by writes once it is
+    private final TreeSet<String> keys = new TreeSet<>();
+    private volatile boolean keysLoaded = false;
+    private int nextId = 1;
+    private volatile long liveBytes = 0L;
+    private volatile long totalBytes = 0L;
+
+    // group commit: appends write their group under the lock, then one thread fsyncs what everyone wrote so far
+    // while the others wait for it
+    private final Object syncLock = new Object();
+    private long appendSeq = 0L;
+    private long durableSeq = 0L;
+    private boolean syncing = false;
+
+    private ExecutorService compactor;
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    // set while a compaction has pointed keys at a segment that is not renamed into place yet
+    private LogSegment compactingInto;
+    private volatile boolean closed = true;
+    // held while connected: a second instance on the directory would append over this one's offsets
+    private FileChannel lockChannel;
+    private FileLock dirLock;
+
+    public LogStorage(File dataFolder) {
+        this(dataFolder, JavaPlugin.getPlugin(YOVPlugin.class));
+    }
+
+    private LogStorage(File dataFolder, YOVPlugin plugin) {
+        this(dataFolder, settingsFrom(plugin.getConfig()), plugin.getLogger());
+    }
+
+    public LogStorage(File dataFolder, Settings settings, Logger logger) {
+        this.dir = new File(dataFolder, "variables-log");
+        this.settings = settings;
+        this.logger = logger;
+    }
+
+    private static Settings settingsFrom(FileConfiguration cfg) {
+        return new Settings(
+                Math.max(1L, cfg.getLong("storage.log.segment-size-mb", 64L)) * 1024L * 1024L,
+                cfg.getDouble("storage.log.compact-ratio", 0.5),
+                cfg.getBoolean("storage.log.fsync", true)
+        );
+    }
+
+    @Override
+    public void connect() throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (!closed) return;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+
+            lockDirectory();
+            try {
+                openSegments();
+                openIndex();
+            } catch (Exception e) {
+                for (LogSegment segment : segments.values()) segment.close();
+                segments.clear();
+                unlockDirectory();
+                throw e;
+            }
+
+            LogSegment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (last == null || last.compacted || last.size() >= settings.segmentSizeBytes()) {
+                roll();
+            } else {
+                active = last;
+            }
+
+            index.markDirty();
+            compactor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "YOV-LogCompactor");
+                t.setDaemon(true);
+                return t;
+            });
+            closed = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    private void lockDirectory() throws IOException {
+        FileChannel channel = FileChannel.open(new File(dir, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (acquired == null) {
+            channel.close();
+            throw new IOException(dir + " is already open in another log storage");
+        }
+        lockChannel = channel;
+        dirLock = acquired;
+    }
+
+    private void unlockDirectory() throws IOException {
+        if (lockChannel == null) return;
+        try {
+            dirLock.release();
+        } finally {
+            lockChannel.close();
+            lockChannel = null;
+            dirLock = null;
+        }
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Could not list " + dir);
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".seg.tmp")) {
+                // an unfinished compaction, the segments it was copying from are all still there
+                if (!file.delete()) throw new IOException("Could not remove " + file);
+            } else if (name.endsWith(".seg")) {
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(0, name.length() - 4));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(id, LogSegment.open(file, id));
+            }
+        }
+
+        // a compacted segment holds everything written before it, older ones were left by a crash
+        int base = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment.compacted) base = segment.id;
+        }
+        while (!segments.isEmpty() && segments.firstKey() < base) {
+            LogSegment stale = segments.pollFirstEntry().getValue();
+            stale.close();
+            if (!stale.file.delete()) throw new IOException("Could not remove " + stale.file);
+        }
+
+        nextId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        totalBytes = 0L;
+        for (LogSegment segment : segments.values()) totalBytes += segment.size();
+    }
+
+    private void openIndex() throws IOException {
+        LogSegment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("index-") && name.endsWith(".idx"));
+        if (files != null) {
+            for (File file : files) {
+                LogIndex opened = index == null && last != null ? LogIndex.open(file) : null;
+                if (opened != null && opened.getCheckpointSegment() == last.id && opened.getCheckpointSize() == last.size()) {
+                    index = opened;
+                    liveBytes = opened.getLiveBytes();
+                } else if (!file.delete()) {
+                    throw new IOException("Could not remove " + file);
+                }
+            }
+        }
+
+        keys.clear();
+        keysLoaded = false;
+        if (index == null) {
+            // the replay reads every key anyway
+            keysLoaded = true;
+            rebuildIndex();
+        }
+    }
+
+    private void loadKeys() throws IOException {
+        if (keysLoaded) return;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (keysLoaded) return;
+            for (long location : sortedLocations()) keys.add(new String(readRecord(location, false).key(), StandardCharsets.UTF_8));
+            keysLoaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // replays every segment in order; an unfinished write at the end of one is cut off
+    private void rebuildIndex() throws IOException {
+        index = LogIndex.create(dir, 0L);
+        liveBytes = 0L;
+        if (segments.isEmpty()) return;
+
+        long start = System.currentTimeMillis();
+        for (LogSegment segment : segments.values()) {
+            long end = segment.scan((type, key, value, offset, size) -> {
+                long location = location(segment.id, offset);
+                if (type == LogSegment.PUT) putIndex(hash(key), key, location, size);
+                else removeIndex(hash(key), key);
+            });
+
+            if (end < segment.size()) {
+                logger.warning("Dropping " + (segment.size() - end) + " bytes of an unfinished write at the end of " + segment.file.getName());
+                totalBytes -= segment.size() - end;
+                segment.truncate(end);
+            }
+        }
+        logger.info("Rebuilt the log index: " + index.getCount() + " keys in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    @Override
+    public void set(String key, String value) throws Exception {
+        writeBatch(Collections.singletonMap(key, value));
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        writeBatch(Collections.singletonMap(key, null));
+    }
+
+    @Override
+    public void writeBatch(Map<String, String> changes) throws Exception {
+        if (changes == null || changes.isEmpty()) return;
+
+        List<byte[]> keys = new ArrayList<>(changes.size());
+        List<byte[]> values = new ArrayList<>(changes.size());
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            keys.add(bytes(e.getKey()));
+            values.add(e.getValue() != null ? bytes(e.getValue()) : null);
+        }
+
+        long seq;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            seq = append(keys, values);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        afterAppend(seq);
+    }
+
+    // read, add and append under one lock hold, so no other write lands in between
+    @Override
+    public Map<String, String> applyDeltas(Map<String, BigDecimal> deltas) throws Exception {
+        Map<String, String> out = new HashMap<>();
+        if (deltas == null || deltas.isEmpty()) return out;
+
+        List<byte[]> keys = new ArrayList<>(deltas.size());
+        List<byte[]> values = new ArrayList<>(deltas.size());
+        long seq;
+
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (Map.Entry<String, BigDecimal> e : deltas.entrySet()) {
+                byte[] key = bytes(e.getKey());
+                String current = read(key);
+                String updated = StorageBackend.addDelta(current, e.getValue());
+                if (updated == null) {
+                    if (current != null) out.put(e.getKey(), current);
+                    continue;
+                }
+                keys.add(key);
+                values.add(bytes(updated));
+                out.put(e.getKey(), updated);
+            }
+            if (keys.isEmpty()) return out;
+            seq = append(keys, values);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        afterAppend(seq);
+        return out;
+    }
+
+    // one group: the records, then a commit record; a group never spans two segments
+    private long append(List<byte[]> keys, List<byte[]> values) throws IOException {
+        int bytes = LogSegment.RECORD_HEADER;
+        for (int i = 0; i < keys.size(); i++) {
+            bytes += LogSegment.recordSize(keys.get(i), values.get(i));
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        int[] offsets = new int[keys.size()];
+        int[] sizes = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            offsets[i] = buf.position();
+            byte[] value = values.get(i);
+            sizes[i] = LogSegment.encode(buf, crc, value != null ? LogSegment.PUT : LogSegment.DELETE, keys.get(i), value);
+        }
+        LogSegment.encode(buf, crc, LogSegment.COMMIT, NO_KEY, null);
+        buf.flip();
+
+        if (active.size() > LogSegment.HEADER_SIZE && active.size() + bytes > settings.segmentSizeBytes()) {
+            roll();
+        }
+        // the index only points at a group once it is in the file; a failed write leaves no trace of it
+        long base = active.append(buf);
+        try {
+            active.flush();
+        } catch (IOException | RuntimeException e) {
+            active.discard(base);
+            throw e;
+        }
+        totalBytes += bytes;
+
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            if (values.get(i) != null) putIndex(hash(key), key, location(active.id, base + offsets[i]), sizes[i]);
+            else removeIndex(hash(key), key);
+        }
+        return ++appendSeq;
+    }
+
+    private void afterAppend(long seq) throws IOException {
+        if (settings.fsync()) sync(seq);
+        maybeCompact();
+    }
+
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            while (durableSeq < seq && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the variable log to sync", e);
+                }
+            }
+            if (durableSeq >= seq) return;
+            syncing = true;
+        }
+
+        long target = -1L;
+        try {
+            LogSegment segment;
+            lock.readLock().lock();
+            try {
+                target = appendSeq;
+                segment = active;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // segments rolled over before were forced by roll()
+            if (segment != null) segment.force();
+        } catch (IOException | RuntimeException e) {
+            target = -1L;
+            throw e;
+        } finally {
+            synchronized (syncLock) {
+                if (target > durableSeq) durableSeq = target;
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.flush();
+            if (settings.fsync()) active.force();
+        }
+        if (nextId > MAX_SEGMENT_ID) throw new IOException("Log segment ids are used up");
+
+        int id = nextId++;
+        LogSegment segment = LogSegment.create(new File(dir, LogSegment.name(id)), id, false);
+        segments.put(id, segment);
+        active = segment;
+        totalBytes += segment.size();
+    }
+
+    private void putIndex(long hash, byte[] key, long location, int size) throws IOException {
+        if (index.isFull()) {
+            LogIndex old = index;
+            index = old.grow(dir);
+            old.delete();
+        }
+
+        KeyMatch match = new KeyMatch(key, false);
+        long previous = index.put(hash, location, match);
+        liveBytes += size;
+        if (previous >= 0L) liveBytes -= match.record.size();
+        else if (keysLoaded) keys.add(new String(key, StandardCharsets.UTF_8));
+    }
+
+    private void removeIndex(long hash, byte[] key) {
+        KeyMatch match = new KeyMatch(key, false);
+        if (index.remove(hash, match) >= 0L) {
+            liveBytes -= match.record.size();
+            if (keysLoaded) keys.remove(new String(key, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        byte[] k = bytes(key);
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return read(k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private String read(byte[] key) {
+        KeyMatch match = new KeyMatch(key, true);
+        if (index.get(hash(key), match) < 0L) return null;
+        return new String(match.record.value(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Map<String, String> getMany(Collection<String> keys) throws Exception {
+        Map<String, String> out = new HashMap<>();
+        if (keys == null || keys.isEmpty()) return out;
+
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (String key : keys) {
+                if (key == null) continue;
+                String value = read(bytes(key));
+                if (value != null) out.put(key, value);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public List<String> getAllKeys() throws Exception {
+        List<String> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (long location : sortedLocations()) {
+                out.add(new String(readRecord(location, false).key(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, String> getAllEntries() throws Exception {
+        Map<String, String> out = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (long location : sortedLocations()) {
+                LogSegment.Record record = readRecord(location, true);
+                out.put(new String(record.key(), StandardCharsets.UTF_8), new String(record.value(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public List<String> getKeysByPrefix(String prefix) throws Exception {
+        List<String> out = new ArrayList<>();
+        if (prefix == null) return out;
+
+        loadKeys();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (String key : keys.tailSet(prefix)) {
+                if (!key.startsWith(prefix)) break;
+                out.add(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, String> getEntriesByPrefix(String prefix) throws Exception {
+        Map<String, String> out = new HashMap<>();
+        if (prefix == null) return out;
+
+        loadKeys();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (String key : keys.tailSet(prefix)) {
+                if (!key.startsWith(prefix)) break;
+                String value = read(bytes(key));
+                if (value != null) out.put(key, value);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, String> getGlobalEntries() throws Exception {
+        Map<String, String> out = new HashMap<>();
+        loadKeys();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (String key : keys) {
+                if (key.indexOf('_') >= 0) continue;
+                String value = read(bytes(key));
+                if (value != null) out.put(key, value);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    // in file order, so a full read goes through the segments front to back
+    private long[] sortedLocations() {
+        long[] locations = new long[index.getCount()];
+        int[] n = new int[1];
+        index.forEach(location -> locations[n[0]++] = location);
+        Arrays.sort(locations);
+        return locations;
+    }
+
+    private void maybeCompact() {
+        if (closed) return;
+        long total = totalBytes;
+        if (total < settings.segmentSizeBytes() || total - liveBytes < total * settings.compactRatio()) return;
+        if (!compacting.compareAndSet(false, true)) return;
+
+        try {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    if (!closed) logger.log(Level.WARNING, "Failed to compact the variable log", e);
+                } finally {
+                    compacting.set(false);
+                }
+                // writes made meanwhile may already call for the next round
+                maybeCompact();
+            });
+        } catch (RejectedExecutionException e) {
+            compacting.set(false);
+        }
+    }
+
+    // copies the live records of every sealed segment into one new segment, then drops the old ones.
+    // Keys are pointed at their copies chunk by chunk, unless a newer write replaced them meanwhile.
+    private void compact() throws IOException {
+        List<LogSegment> sealed;
+        LogSegment out;
+        File tmp;
+        long before = totalBytes;
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            int outId = nextId++;
+            roll();
+            sealed = new ArrayList<>(segments.headMap(outId).values());
+            tmp = new File(dir, LogSegment.name(outId) + ".tmp");
+            out = LogSegment.create(tmp, outId, true);
+            segments.put(outId, out);
+            compactingInto = out;
+            totalBytes += out.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        ByteBuffer[] chunk = {ByteBuffer.allocate(COPY_CHUNK)};
+        List<long[]> moved = new ArrayList<>();
+        CRC32 copyCrc = new CRC32();
+
+        for (LogSegment segment : sealed) {
+            segment.scan((type, key, value, offset, size) -> {
+                if (closed) throw new IOException("Variable log closed during compaction");
+                if (type != LogSegment.PUT) return;
+
+                long from = location(segment.id, offset);
+                long hash = hash(key);
+                lock.readLock().lock();
+                try {
+                    if (!index.contains(hash, from)) return;
+                } finally {
+                    lock.readLock().unlock();
+                }
+
+                if (chunk[0].remaining() < size + LogSegment.RECORD_HEADER) {
+                    copyChunk(out, chunk[0], moved, copyCrc);
+                    if (chunk[0].capacity() < size + LogSegment.RECORD_HEADER) {
+                        chunk[0] = ByteBuffer.allocate(size + LogSegment.RECORD_HEADER);
+                    }
+                }
+                long to = location(out.id, out.size() + chunk[0].position());
+                LogSegment.encode(chunk[0], copyCrc, LogSegment.PUT, key, value);
+                moved.add(new long[]{hash, from, to});
+            });
+        }
+        copyChunk(out, chunk[0], moved, copyCrc);
+        out.force();
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+
+            File target = new File(dir, LogSegment.name(out.id));
+            out.close();
+            LogSegment done;
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                done = LogSegment.open(target, out.id);
+            } catch (IOException e) {
+                segments.put(out.id, LogSegment.open(tmp, out.id));
+                throw e;
+            }
+            segments.put(done.id, done);
+            compactingInto = null;
+
+            for (LogSegment segment : sealed) {
+                segments.remove(segment.id);
+                segment.close();
+                if (!segment.file.delete()) {
+                    logger.warning("Could not remove compacted log segment " + segment.file.getName());
+                }
+            }
+
+            totalBytes = 0L;
+            for (LogSegment segment : segments.values()) totalBytes += segment.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info("Compacted the variable log from " + (before / 1024L) + " KiB to " + (totalBytes / 1024L) + " KiB.");
+    }
+
+    // each chunk is its own group, then its keys move over
+    private void copyChunk(LogSegment out, ByteBuffer chunk, List<long[]> moved, CRC32 copyCrc) throws IOException {
+        if (moved.isEmpty()) return;
+
+        LogSegment.encode(chunk, copyCrc, LogSegment.COMMIT, NO_KEY, null);
+        chunk.flip();
+        int bytes = chunk.remaining();
+        out.append(chunk);
+        out.flush();
+        chunk.clear();
+
+        lock.writeLock().lock();
+        try {
+            totalBytes += bytes;
+            for (long[] m : moved) {
+                index.relocate(m[0], m[1], m[2]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        moved.clear();
+    }
+
+    private LogSegment.Record readRecord(long location, boolean withValue) throws IOException {
+        int id = (int) (location >>> OFFSET_BITS);
+        LogSegment segment = segments.get(id);
+        if (segment == null) throw new IOException("Log segment " + id + " is missing");
+
+        LogSegment.Record record = segment.read(location & OFFSET_MASK, withValue);
+        if (record == null) throw new IOException("Log segment " + id + " ends before " + (location & OFFSET_MASK));
+        return record;
+    }
+
+    // reads the record a slot points at to tell keys with the same hash apart
+    private final class KeyMatch implements LongPredicate {
+
+        private final byte[] key;
+        private final boolean withValue;
+        private LogSegment.Record record;
+
+        KeyMatch(byte[] key, boolean withValue) {
+            this.key = key;
+            this.withValue = withValue;
+        }
+
+        @Override
+        public boolean test(long location) {
+            try {
+                LogSegment.Record candidate = readRecord(location, withValue);
+                if (!Arrays.equals(candidate.key(), key)) return false;
+                record = candidate;
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    // FNV-1a with a final mix, the index probes on the low bits
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Variable log is closed");
+    }
+
+    @Override
+    public int getMaxWriteConcurrency() {
+        return 4;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (closed) return;
+        closed = true;
+
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (active != null) {
+                active.flush();
+                active.force();
+            }
+            // keys may point into an unfinished compaction, which is dropped on the next start
+            if (compactingInto == null && active != null) {
+                index.checkpoint(active.id, active.size(), liveBytes);
+            }
+            for (LogSegment segment : segments.values()) segment.close();
+            segments.clear();
+            keys.clear();
+            keysLoaded = false;
+            active = null;
+            index = null;
+            compactingInto = null;
+            unlockDirectory();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -5,16 +5,26 @@ import com.zaxxer.hikari.HikariDataSource;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 import yov.YOVPlugin;
+import yov.storage.BulkAction;
+import yov.storage.ChangeLogCapable;
+import yov.storage.ChangeLogEntry;
+import yov.storage.DeltaLedger;
+import yov.storage.KeyPattern;
 import yov.storage.StorageBackend;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
-public class SqlStorage implements StorageBackend {
+public class SqlStorage implements StorageBackend, ChangeLogCapable, DeltaLedger {
 
     private final String host;
     private final int port;
@@ -38,6 +48,7 @@ public class SqlStorage implements StorageBackend {
     private final String poolName;
     private final long initializationFailTimeout;
     private final String connectionTestQuery;
+    private final boolean rewriteBatchedStatements;
 
     private final String tableName;
     private final String keyColumn;
@@ -45,7 +56,19 @@ public class SqlStorage implements StorageBackend {
     private final String tableEngine;
     private final String tableCharset;
 
+    private final boolean changeLogEnabled;
+    private final String changeLogTable;
+    private final String appliedTable;
+
+    private static final int IN_CHUNK_SIZE = 500;
+    private static final int UPSERT_CHUNK_SIZE = 500;
+    private static final int DEADLOCK_RETRIES = 3;
+
+    // what StorageBackend.addDelta accepts as a number
+    private static final String NUMERIC_REGEXP = "^[+-]?([0-9]+[.,]?[0-9]*|[.,][0-9]+)$";
+
     private HikariDataSource dataSource;
+    private long changeLogStride = 1L;
 
     public SqlStorage(String backend,
                       String host,
@@ -53,9 +76,15 @@ public class SqlStorage implements StorageBackend {
                       String database,
                       String user,
                       String pass) {
+        this(JavaPlugin.getPlugin(YOVPlugin.class).getConfig(), host, port, database, user, pass);
+    }
 
-        YOVPlugin plugin = JavaPlugin.getPlugin(YOVPlugin.class);
-        FileConfiguration cfg = plugin.getConfig();
+    SqlStorage(FileConfiguration cfg,
+               String host,
+               int port,
+               String database,
+               String user,
+               String pass) {
 
         this.host = cfg.getString("storage.mariadb.host", host);
         this.port = cfg.getInt("storage.mariadb.port", port);
@@ -79,12 +108,17 @@ public class SqlStorage implements StorageBackend {
         this.poolName = cfg.getString("storage.mariadb.hikari.pool-name", "YOV-POOL");
         this.initializationFailTimeout = cfg.getLong("storage.mariadb.hikari.initialization-fail-timeout", -1L);
         this.connectionTestQuery = cfg.getString("storage.mariadb.hikari.connection-test-query", "SELECT 1");
+        this.rewriteBatchedStatements = cfg.getBoolean("storage.mariadb.rewrite-batched-statements", true);
 
         this.tableName = cfg.getString("storage.mariadb.table", "variables");
         this.keyColumn = cfg.getString("storage.mariadb.key-column", "key");
         this.valueColumn = cfg.getString("storage.mariadb.value-column", "value");
         this.tableEngine = cfg.getString("storage.mariadb.table-engine", "InnoDB");
         this.tableCharset = cfg.getString("storage.mariadb.table-charset", "utf8mb4");
+
+        this.changeLogEnabled = cfg.getBoolean("storage.mariadb.change-log.enabled", false);
+        this.changeLogTable = cfg.getString("storage.mariadb.change-log.table", tableName + "_changes");
+        this.appliedTable = cfg.getString("storage.mariadb.applied-table", tableName + "_applied");
     }
 
     @Override
@@ -95,7 +129,8 @@ public class SqlStorage implements StorageBackend {
                 + "?useSSL=" + useSSL
                 + "&allowPublicKeyRetrieval=" + allowPublicKeyRetrieval
                 + "&serverTimezone=" + serverTimezone
-                + "&sessionVariables=" + sessionVariables;
+                + "&sessionVariables=" + sessionVariables
+                + "&rewriteBatchedStatements=" + rewriteBatchedStatements;
 
         HikariConfig cfg = new HikariConfig();
         cfg.setJdbcUrl(jdbcUrl);
@@ -116,8 +151,11 @@ public class SqlStorage implements StorageBackend {
         cfg.setInitializationFailTimeout(initializationFailTimeout);
         cfg.setConnectionTestQuery(connectionTestQuery);
 
-        dataSource = new HikariDataSource(cfg);
+        connect(new HikariDataSource(cfg));
+    }
 
+    void connect(HikariDataSource dataSource) throws SQLException {
+        this.dataSource = dataSource;
         createTable();
     }
 
@@ -133,6 +171,51 @@ public class SqlStorage implements StorageBackend {
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.executeUpdate();
         }
+
+        if (changeLogEnabled) {
+            createChangeLogTable();
+        }
+        createAppliedTable();
+    }
+
+    // per server journal and key, the last journaled delta applied here
+    private void createAppliedTable() throws SQLException {
+
+        String sql = "CREATE TABLE IF NOT EXISTS `" + appliedTable + "` (" +
+                " `journal` VARCHAR(64) NOT NULL," +
+                " `" + keyColumn + "` VARCHAR(255) NOT NULL," +
+                " `seq` BIGINT NOT NULL," +
+                " PRIMARY KEY (`journal`, `" + keyColumn + "`)" +
+                ") ENGINE=" + tableEngine + " DEFAULT CHARSET=" + tableCharset + ";";
+
+        try (Connection conn = dataSource.getConnection();
+             Statement st = conn.createStatement()) {
+            st.executeUpdate(sql);
+        }
+    }
+
+    private void createChangeLogTable() throws SQLException {
+
+        String sql = "CREATE TABLE IF NOT EXISTS `" + changeLogTable + "` (" +
+                " `version` BIGINT NOT NULL AUTO_INCREMENT," +
+                " `" + keyColumn + "` VARCHAR(255) NOT NULL," +
+                " `" + valueColumn + "` TEXT NULL," +
+                " `changed_at` BIGINT NOT NULL," +
+                " PRIMARY KEY (`version`)," +
+                " KEY `idx_changed_at` (`changed_at`)" +
+                ") ENGINE=" + tableEngine + " DEFAULT CHARSET=" + tableCharset + ";";
+
+        try (Connection conn = dataSource.getConnection();
+             Statement st = conn.createStatement()) {
+            st.executeUpdate(sql);
+            changeLogStride = Math.max(1L, readAutoIncrementStep(st));
+        }
+    }
+
+    long readAutoIncrementStep(Statement st) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT @@auto_increment_increment")) {
+            return rs.next() ? rs.getLong(1) : 1L;
+        }
     }
 
     @Override
@@ -148,10 +231,342 @@ public class SqlStorage implements StorageBackend {
             ps.setString(1, key);
             ps.setString(2, value);
             ps.setString(3, value);
+
+            if (!changeLogEnabled) {
+                ps.executeUpdate();
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            try {
+                ps.executeUpdate();
+                appendChanges(conn, Collections.singletonMap(key, value));
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void writeBatch(Map<String, String> changes) throws Exception {
+        if (changes == null || changes.isEmpty()) return;
+
+        List<String> upsertKeys = new ArrayList<>(changes.size());
+        List<String> deleteKeys = new ArrayList<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() == null) deleteKeys.add(e.getKey());
+            else upsertKeys.add(e.getKey());
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                upsertAll(conn, upsertKeys, changes);
+                deleteAll(conn, deleteKeys);
+                appendChanges(conn, changes);
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, String> applyDeltas(Map<String, BigDecimal> deltas) throws Exception {
+        return applyDeltas(deltas, null, Map.of());
+    }
+
+    @Override
+    public Map<String, String> applyDeltas(Map<String, BigDecimal> deltas, String journalId, Map<String, Long> sequences) throws Exception {
+        if (deltas == null || deltas.isEmpty()) return new java.util.HashMap<>();
+
+        // lock rows in one global order so servers adding to the same keys queue up instead of deadlocking
+        List<String> keys = new ArrayList<>(deltas.keySet());
+        Collections.sort(keys);
+
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    Map<String, String> result = applyDeltas(conn, keys, deltas);
+                    if (journalId != null) recordApplied(conn, journalId, sequences);
+                    conn.commit();
+                    return result;
+                } catch (Exception e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                if (!"40001".equals(e.getSQLState()) || attempt >= DEADLOCK_RETRIES) throw e;
+            }
+        }
+    }
+
+    private Map<String, String> applyDeltas(Connection conn, List<String> keys, Map<String, BigDecimal> deltas) throws Exception {
+        Map<String, String> current = lockRows(conn, keys);
+
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            if (!current.containsKey(key)) missing.add(key);
+        }
+
+        // create missing rows, then lock them too: a concurrent server may have inserted them first
+        if (!missing.isEmpty()) {
+            for (int from = 0; from < missing.size(); from += UPSERT_CHUNK_SIZE) {
+                List<String> chunk = missing.subList(from, Math.min(missing.size(), from + UPSERT_CHUNK_SIZE));
+
+                StringBuilder sql = new StringBuilder("INSERT IGNORE INTO `" + tableName + "` (`" + keyColumn + "`, `" + valueColumn + "`) VALUES ");
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (i > 0) sql.append(',');
+                    sql.append("(?, '0')");
+                }
+
+                try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        ps.setString(i + 1, chunk.get(i));
+                    }
+                    ps.executeUpdate();
+                }
+            }
+            current.putAll(lockRows(conn, missing));
+        }
+
+        Map<String, String> updated = new java.util.HashMap<>();
+        Map<String, String> result = new java.util.HashMap<>();
+        for (String key : keys) {
+            String value = current.get(key);
+            String sum = StorageBackend.addDelta(value, deltas.get(key));
+            if (sum == null) {
+                if (value != null) result.put(key, value);
+                continue;
+            }
+            updated.put(key, sum);
+        }
+
+        upsertAll(conn, new ArrayList<>(updated.keySet()), updated);
+        appendChanges(conn, updated);
+
+        result.putAll(updated);
+        return result;
+    }
+
+    private void recordApplied(Connection conn, String journalId, Map<String, Long> sequences) throws SQLException {
+        if (sequences.isEmpty()) return;
+
+        String sql = "INSERT INTO `" + appliedTable + "` (`journal`, `" + keyColumn + "`, `seq`) VALUES (?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE `seq` = GREATEST(`seq`, VALUES(`seq`))";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<String, Long> e : sequences.entrySet()) {
+                ps.setString(1, journalId);
+                ps.setString(2, e.getKey());
+                ps.setLong(3, e.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    @Override
+    public Map<String, Long> readAppliedSequences(String journalId) throws Exception {
+
+        Map<String, Long> out = new java.util.HashMap<>();
+        String sql = "SELECT `" + keyColumn + "`, `seq` FROM `" + appliedTable + "` WHERE `journal` = ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            ps.setString(1, journalId);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+
+        return out;
+    }
+
+    @Override
+    public void pruneAppliedSequences(String journalId, long upTo) throws Exception {
+
+        String sql = "DELETE FROM `" + appliedTable + "` WHERE `journal` = ? AND `seq` <= ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, journalId);
+            ps.setLong(2, upTo);
             ps.executeUpdate();
         }
     }
 
+    @Override
+    public int bulkApply(KeyPattern pattern, BulkAction action, String value) throws Exception {
+        BigDecimal delta = action == BulkAction.ADD ? new BigDecimal(value) : null;
+
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    int changed = bulkApply(conn, pattern, action, value, delta);
+                    conn.commit();
+                    return changed;
+                } catch (Exception e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                if (!"40001".equals(e.getSQLState()) || attempt >= DEADLOCK_RETRIES) throw e;
+            }
+        }
+    }
+
+    // one set-based statement; a pattern with a literal prefix is a range scan on the primary key
+    private int bulkApply(Connection conn, KeyPattern pattern, BulkAction action, String value, BigDecimal delta) throws Exception {
+        String where = " WHERE `" + keyColumn + "` LIKE ? ESCAPE '" + KeyPattern.LIKE_ESCAPE + "'";
+        if (action == BulkAction.ADD) {
+            where += " AND TRIM(`" + valueColumn + "`) REGEXP '" + NUMERIC_REGEXP + "'";
+        }
+
+        List<String> keys = null;
+        if (changeLogEnabled) {
+            keys = new ArrayList<>();
+            String sql = "SELECT `" + keyColumn + "` FROM `" + tableName + "`" + where +
+                    " ORDER BY `" + keyColumn + "` FOR UPDATE";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, pattern.toLike());
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) keys.add(rs.getString(1));
+                }
+            }
+            if (keys.isEmpty()) return 0;
+        }
+
+        // same rounding as addDelta: the stored value to 5 decimals half up, trailing zeros dropped
+        String sql = switch (action) {
+            case SET -> "UPDATE `" + tableName + "` SET `" + valueColumn + "` = ?" + where;
+            case ADD -> "UPDATE `" + tableName + "` SET `" + valueColumn + "` = " +
+                    "TRIM(TRAILING '.' FROM TRIM(TRAILING '0' FROM CONCAT(" +
+                    "CAST(REPLACE(TRIM(`" + valueColumn + "`), ',', '.') AS DECIMAL(65, 5)) + ?, '')))" + where;
+            case DELETE -> "DELETE FROM `" + tableName + "`" + where;
+        };
+
+        int changed;
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int idx = 1;
+            if (action == BulkAction.SET) ps.setString(idx++, value);
+            if (action == BulkAction.ADD) ps.setBigDecimal(idx++, delta);
+            ps.setString(idx, pattern.toLike());
+            changed = ps.executeUpdate();
+        }
+
+        if (keys != null) {
+            Map<String, String> changes = new java.util.HashMap<>();
+            if (action == BulkAction.ADD) {
+                changes.putAll(lockRows(conn, keys));
+            } else {
+                for (String key : keys) changes.put(key, action == BulkAction.SET ? value : null);
+            }
+            appendChanges(conn, changes);
+            changed = keys.size();
+        }
+        return changed;
+    }
+
+    private Map<String, String> lockRows(Connection conn, List<String> keys) throws SQLException {
+        Map<String, String> out = new java.util.HashMap<>();
+
+        for (int from = 0; from < keys.size(); from += IN_CHUNK_SIZE) {
+            List<String> chunk = keys.subList(from, Math.min(keys.size(), from + IN_CHUNK_SIZE));
+
+            String sql = "SELECT `" + keyColumn + "`, `" + valueColumn + "` FROM `" + tableName + "` " +
+                    "WHERE `" + keyColumn + "` IN (" + placeholders(chunk.size()) + ") " +
+                    "ORDER BY `" + keyColumn + "` FOR UPDATE";
+
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.put(rs.getString(1), rs.getString(2));
+                    }
+                }
+            }
+        }
+
+        return out;
+    }
+
+    private void upsertAll(Connection conn, List<String> keys, Map<String, String> changes) throws SQLException {
+        if (keys.isEmpty()) return;
+
+        String head = "INSERT INTO `" + tableName + "` (`" + keyColumn + "`, `" + valueColumn + "`) VALUES ";
+        String tail = " ON DUPLICATE KEY UPDATE `" + valueColumn + "` = VALUES(`" + valueColumn + "`)";
+
+        // the driver folds a JDBC batch into multi-row statements itself
+        if (rewriteBatchedStatements) {
+            try (PreparedStatement ps = conn.prepareStatement(head + "(?, ?)" + tail)) {
+                for (String key : keys) {
+                    ps.setString(1, key);
+                    ps.setString(2, changes.get(key));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            return;
+        }
+
+        for (int from = 0; from < keys.size(); from += UPSERT_CHUNK_SIZE) {
+            List<String> chunk = keys.subList(from, Math.min(keys.size(), from + UPSERT_CHUNK_SIZE));
+
+            StringBuilder sql = new StringBuilder(head.length() + tail.length() + chunk.size() * 7);
+            sql.append(head);
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0) sql.append(',');
+                sql.append("(?, ?)");
+            }
+            sql.append(tail);
+
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                int idx = 1;
+                for (String key : chunk) {
+                    ps.setString(idx++, key);
+                    ps.setString(idx++, changes.get(key));
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    private void deleteAll(Connection conn, List<String> keys) throws SQLException {
+        for (int from = 0; from < keys.size(); from += IN_CHUNK_SIZE) {
+            List<String> chunk = keys.subList(from, Math.min(keys.size(), from + IN_CHUNK_SIZE));
+
+            String sql = "DELETE FROM `" + tableName + "` WHERE `" + keyColumn + "` IN (" + placeholders(chunk.size()) + ")";
+
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
     @Override
     public String get(String key) throws Exception {
 
@@ -167,6 +582,51 @@ public class SqlStorage implements StorageBackend {
             }
         }
     }
+    @Override
+    public java.util.Map<String, String> getMany(Collection<String> keys) throws Exception {
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+        if (keys == null || keys.isEmpty()) return out;
+
+        List<String> list = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key != null) list.add(key);
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            for (int from = 0; from < list.size(); from += IN_CHUNK_SIZE) {
+                List<String> chunk = list.subList(from, Math.min(list.size(), from + IN_CHUNK_SIZE));
+
+                String sql = "SELECT `" + keyColumn + "`, `" + valueColumn + "` FROM `" + tableName + "` " +
+                        "WHERE `" + keyColumn + "` IN (" + placeholders(chunk.size()) + ")";
+
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        ps.setString(i + 1, chunk.get(i));
+                    }
+
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            String k = rs.getString(1);
+                            String v = rs.getString(2);
+                            if (k != null && v != null) out.put(k, v);
+                        }
+                    }
+                }
+            }
+        }
+
+        return out;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
     @Override
     public java.util.Map<String, String> getAllEntries() throws Exception {
         java.util.Map<String, String> out = new java.util.HashMap<>();
@@ -186,6 +646,26 @@ public class SqlStorage implements StorageBackend {
         return out;
     }
 
+    @Override
+    public java.util.Map<String, String> getGlobalEntries() throws Exception {
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+        String sql = "SELECT `" + keyColumn + "`, `" + valueColumn + "` FROM `" + tableName + "` " +
+                "WHERE `" + keyColumn + "` NOT LIKE '%!_%' ESCAPE '!'";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+
+            while (rs.next()) {
+                String k = rs.getString(1);
+                String v = rs.getString(2);
+                if (k != null && v != null) out.put(k, v);
+            }
+        }
+
+        return out;
+    }
+
     @Override
     public java.util.Map<String, String> getEntriesByPrefix(String prefix) throws Exception {
         java.util.Map<String, String> out = new java.util.HashMap<>();
@@ -219,7 +699,23 @@ public class SqlStorage implements StorageBackend {
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
             ps.setString(1, key);
-            ps.executeUpdate();
+
+            if (!changeLogEnabled) {
+                ps.executeUpdate();
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            try {
+                ps.executeUpdate();
+                appendChanges(conn, Collections.singletonMap(key, null));
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         }
     }
 
@@ -261,6 +757,123 @@ public class SqlStorage implements StorageBackend {
         return list;
     }
 
+    @Override
+    public boolean isChangeLogEnabled() {
+        return changeLogEnabled;
+    }
+
+    @Override
+    public long getChangeLogStride() {
+        return changeLogStride;
+    }
+
+    @Override
+    public long getChangeLogHead() throws Exception {
+
+        // the last version handed out, committed or not; MAX(version) would pass over one still in flight
+        try (Connection conn = dataSource.getConnection();
+             Statement st = conn.createStatement()) {
+            return Math.max(0L, readNextVersion(st) - changeLogStride);
+        }
+    }
+
+    long readNextVersion(Statement st) throws SQLException {
+        String sql = "SELECT `AUTO_INCREMENT` FROM information_schema.`TABLES` " +
+                "WHERE `TABLE_SCHEMA` = DATABASE() AND `TABLE_NAME` = '" + changeLogTable + "'";
+        try (ResultSet rs = st.executeQuery(sql)) {
+            return rs.next() ? Math.max(1L, rs.getLong(1)) : 1L;
+        }
+    }
+
+    @Override
+    public List<ChangeLogEntry> readChanges(long afterVersion, int limit) throws Exception {
+
+        List<ChangeLogEntry> list = new ArrayList<>();
+        String sql = "SELECT `version`, `" + keyColumn + "`, `" + valueColumn + "` FROM `" + changeLogTable + "` " +
+                "WHERE `version` > ? ORDER BY `version` LIMIT ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            ps.setLong(1, afterVersion);
+            ps.setInt(2, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(new ChangeLogEntry(rs.getLong(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public List<ChangeLogEntry> readVersions(Collection<Long> versions) throws Exception {
+
+        List<ChangeLogEntry> list = new ArrayList<>();
+        if (versions.isEmpty()) return list;
+
+        String sql = "SELECT `version`, `" + keyColumn + "`, `" + valueColumn + "` FROM `" + changeLogTable + "` " +
+                "WHERE `version` IN (" + String.join(",", Collections.nCopies(versions.size(), "?")) + ") ORDER BY `version`";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int i = 1;
+            for (long version : versions) {
+                ps.setLong(i++, version);
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(new ChangeLogEntry(rs.getLong(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void appendChanges(Connection conn, Map<String, String> changes) throws Exception {
+        if (!changeLogEnabled || changes.isEmpty()) return;
+
+        String sql = "INSERT INTO `" + changeLogTable + "` (`" + keyColumn + "`, `" + valueColumn + "`, `changed_at`) " +
+                "VALUES (?, ?, ?)";
+
+        long now = System.currentTimeMillis();
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                ps.setString(1, entry.getKey());
+                ps.setString(2, entry.getValue());
+                ps.setLong(3, now);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    @Override
+    public void pruneChangeLog(long olderThanMillis) throws Exception {
+        if (!changeLogEnabled) return;
+
+        String sql = "DELETE FROM `" + changeLogTable + "` WHERE `changed_at` < ?";
+
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, olderThanMillis);
+            ps.executeUpdate();
+        }
+    }
+
+    // one pooled connection stays free for reads and the change log tailer
+    @Override
+    public int getMaxWriteConcurrency() {
+        return Math.max(1, maximumPoolSize - 1);
+    }
+
     @Override
     public Connection getConnection() throws Exception {
         return dataSource.getConnection();
@@ -1,14 +1,19 @@
 package yov.storage.impl;
 
 import yov.storage.BatchCapable;
+import yov.storage.BulkAction;
+import yov.storage.DeltaLedger;
+import yov.storage.KeyPattern;
 import yov.storage.StorageBackend;
 
 import java.io.File;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
-public class SqliteStorage implements StorageBackend, BatchCapable {
+public class SqliteStorage implements StorageBackend, BatchCapable, DeltaLedger {
 
     private final File file;
     private Connection connection;
@@ -21,6 +26,8 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
 
     private boolean inBatch = false;
 
+    private static final int IN_CHUNK_SIZE = 500;
+
     public SqliteStorage(File dataFolder) {
         this.file = new File(dataFolder, "variables.db");
     }
@@ -57,8 +64,17 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
                     value TEXT
                 );
                 """;
+        String applied = """
+                CREATE TABLE IF NOT EXISTS applied (
+                    journal TEXT    NOT NULL,
+                    key     TEXT    NOT NULL,
+                    seq     INTEGER NOT NULL,
+                    PRIMARY KEY (journal, key)
+                );
+                """;
         try (Statement st = connection.createStatement()) {
             st.executeUpdate(sql);
+            st.executeUpdate(applied);
         }
     }
 
@@ -98,6 +114,44 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         }
     }
 
+    @Override
+    public java.util.Map<String, String> getMany(Collection<String> keys) throws Exception {
+        ensureConnection();
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+        if (keys == null || keys.isEmpty()) return out;
+
+        List<String> list = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key != null) list.add(key);
+        }
+
+        for (int from = 0; from < list.size(); from += IN_CHUNK_SIZE) {
+            List<String> chunk = list.subList(from, Math.min(list.size(), from + IN_CHUNK_SIZE));
+
+            StringBuilder sql = new StringBuilder("SELECT key, value FROM variables WHERE key IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(')');
+
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String k = rs.getString("key");
+                        String v = rs.getString("value");
+                        if (k != null && v != null) out.put(k, v);
+                    }
+                }
+            }
+        }
+
+        return out;
+    }
+
     @Override
     public void delete(String key) throws Exception {
         ensureConnection();
@@ -122,9 +176,9 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         ensureConnection();
         List<String> list = new ArrayList<>();
         try (PreparedStatement ps = connection.prepareStatement(
-                "SELECT key FROM variables WHERE key LIKE ?"
+                "SELECT key FROM variables WHERE key GLOB ?"
         )) {
-            ps.setString(1, prefix + "%");
+            ps.setString(1, globPrefix(prefix));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     list.add(rs.getString("key"));
@@ -134,6 +188,125 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         return list;
     }
 
+    // LIKE would take '_' in a prefix as a wildcard and ignore case; GLOB matches literally and uses the key index
+    private static String globPrefix(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix.length() + 4);
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c == '*' || c == '?' || c == '[') sb.append('[').append(c).append(']');
+            else sb.append(c);
+        }
+        return sb.append('*').toString();
+    }
+
+    // SQLite has no exact decimal type, so add/rem read the matching rows and write the sums back;
+    // either way it is one transaction
+    @Override
+    public int bulkApply(KeyPattern pattern, BulkAction action, String value) throws Exception {
+        ensureConnection();
+        boolean own = !inBatch;
+        if (own) beginBatch();
+        try {
+            int changed = switch (action) {
+                case SET -> updateMatching("UPDATE variables SET value = ? WHERE key GLOB ?", value, pattern);
+                case DELETE -> updateMatching("DELETE FROM variables WHERE key GLOB ?", null, pattern);
+                case ADD -> addMatching(pattern, new BigDecimal(value));
+            };
+            if (own) endBatch();
+            return changed;
+        } catch (Exception e) {
+            if (own) abortBatch();
+            throw e;
+        }
+    }
+
+    // the sums and what they were journaled as commit together
+    @Override
+    public java.util.Map<String, String> applyDeltas(java.util.Map<String, BigDecimal> deltas, String journalId,
+                                                     java.util.Map<String, Long> sequences) throws Exception {
+        ensureConnection();
+        boolean own = !inBatch;
+        if (own) beginBatch();
+        try {
+            java.util.Map<String, String> result = applyDeltas(deltas);
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "INSERT INTO applied (journal, key, seq) VALUES (?, ?, ?) " +
+                            "ON CONFLICT(journal, key) DO UPDATE SET seq = max(seq, excluded.seq)"
+            )) {
+                for (java.util.Map.Entry<String, Long> e : sequences.entrySet()) {
+                    ps.setString(1, journalId);
+                    ps.setString(2, e.getKey());
+                    ps.setLong(3, e.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            if (own) endBatch();
+            return result;
+        } catch (Exception e) {
+            if (own) abortBatch();
+            throw e;
+        }
+    }
+
+    @Override
+    public java.util.Map<String, Long> readAppliedSequences(String journalId) throws Exception {
+        ensureConnection();
+        java.util.Map<String, Long> out = new java.util.HashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement("SELECT key, seq FROM applied WHERE journal = ?")) {
+            ps.setString(1, journalId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.put(rs.getString("key"), rs.getLong("seq"));
+                }
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void pruneAppliedSequences(String journalId, long upTo) throws Exception {
+        ensureConnection();
+        try (PreparedStatement ps = connection.prepareStatement("DELETE FROM applied WHERE journal = ? AND seq <= ?")) {
+            ps.setString(1, journalId);
+            ps.setLong(2, upTo);
+            ps.executeUpdate();
+        }
+    }
+
+    private int updateMatching(String sql, String value, KeyPattern pattern) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            int idx = 1;
+            if (value != null) ps.setString(idx++, value);
+            ps.setString(idx, pattern.toSqliteGlob());
+            return ps.executeUpdate();
+        }
+    }
+
+    private int addMatching(KeyPattern pattern, BigDecimal delta) throws SQLException {
+        java.util.Map<String, String> updated = new java.util.HashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement("SELECT key, value FROM variables WHERE key GLOB ?")) {
+            ps.setString(1, pattern.toSqliteGlob());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String current = rs.getString("value");
+                    String sum = current != null ? StorageBackend.addDelta(current, delta) : null;
+                    if (sum != null) updated.put(rs.getString("key"), sum);
+                }
+            }
+        }
+
+        try (PreparedStatement ps = connection.prepareStatement("UPDATE variables SET value = ? WHERE key = ?")) {
+            for (java.util.Map.Entry<String, String> e : updated.entrySet()) {
+                ps.setString(1, e.getValue());
+                ps.setString(2, e.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return updated.size();
+    }
+
     @Override
     public java.util.Map<String, String> getAllEntries() throws Exception {
         ensureConnection();
@@ -148,6 +321,21 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         return out;
     }
 
+    @Override
+    public java.util.Map<String, String> getGlobalEntries() throws Exception {
+        ensureConnection();
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT key, value FROM variables WHERE instr(key, '_') = 0")) {
+            while (rs.next()) {
+                String k = rs.getString("key");
+                String v = rs.getString("value");
+                if (k != null && v != null) out.put(k, v);
+            }
+        }
+        return out;
+    }
+
     @Override
     public java.util.Map<String, String> getEntriesByPrefix(String prefix) throws Exception {
         ensureConnection();
@@ -155,9 +343,9 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         if (prefix == null) return out;
 
         try (PreparedStatement ps = connection.prepareStatement(
-                "SELECT key, value FROM variables WHERE key LIKE ?"
+                "SELECT key, value FROM variables WHERE key GLOB ?"
         )) {
-            ps.setString(1, prefix + "%");
+            ps.setString(1, globPrefix(prefix));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     String k = rs.getString("key");
@@ -195,6 +383,16 @@ public class SqliteStorage implements StorageBackend, BatchCapable {
         }
     }
 
+    @Override
+    public void abortBatch() throws Exception {
+        ensureConnection();
+        if (inBatch) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+            inBatch = false;
+        }
+    }
+
     @Override
     public void close() throws Exception {
         if (psSet != null) psSet.close();
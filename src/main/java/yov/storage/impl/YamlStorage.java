@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -126,6 +127,24 @@ public class YamlStorage implements StorageBackend {
             }
         }
     }
+    @Override
+    public java.util.Map<String, String> getMany(Collection<String> keys) {
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+        if (keys == null || keys.isEmpty()) return out;
+
+        synchronized (lock) {
+            for (String key : keys) {
+                if (key == null) continue;
+                String v = isPlayerKey(key)
+                        ? yaml.getString("players." + getPlayerFromKey(key) + "." + getVariableFromKey(key))
+                        : yaml.getString("global." + key);
+                if (v != null) out.put(key, v);
+            }
+        }
+
+        return out;
+    }
+
     @Override
     public java.util.Map<String, String> getAllEntries() {
         java.util.Map<String, String> out = new java.util.HashMap<>();
@@ -157,6 +176,23 @@ public class YamlStorage implements StorageBackend {
         return out;
     }
 
+    @Override
+    public java.util.Map<String, String> getGlobalEntries() {
+        java.util.Map<String, String> out = new java.util.HashMap<>();
+
+        synchronized (lock) {
+            var globalSec = yaml.getConfigurationSection("global");
+            if (globalSec != null) {
+                for (String k : globalSec.getKeys(false)) {
+                    String v = yaml.getString("global." + k);
+                    if (k != null && v != null) out.put(k, v);
+                }
+            }
+        }
+
+        return out;
+    }
+
     @Override
     public java.util.Map<String, String> getEntriesByPrefix(String prefix) {
         java.util.Map<String, String> out = new java.util.HashMap<>();
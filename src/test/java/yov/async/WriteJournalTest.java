@@ -0,0 +1,52 @@
+package yov.async;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WriteJournalTest {
+
+    private static final Logger LOGGER = Logger.getLogger("WriteJournalTest");
+
+    @TempDir
+    File dir;
+
+    @Test
+    void replayStartsAtTheNewestSnapshot() throws Exception {
+        WriteJournal journal = new WriteJournal(dir, WriteJournal.FsyncPolicy.ALWAYS, 50L, LOGGER);
+        journal.appendSet("rank", "guest");
+        long coins = journal.appendDelta("coins", new DeltaSum(100_000L));
+        journal.appendDelta("coins", new DeltaSum(new BigDecimal("2")));
+        journal.appendSet("rank", "vip");
+
+        long segment = journal.reserveSnapshot();
+        long seq = journal.getSequence();
+        // appended while the snapshot is written, so it has to replay after it
+        journal.appendSet("rank", "admin");
+
+        WriteJournal.Snapshot snapshot = new WriteJournal.Snapshot();
+        snapshot.delta("coins", new BigDecimal("3"), coins + 1);
+        snapshot.set("rank", "vip", seq);
+        journal.writeSnapshot(segment, snapshot);
+        // no truncation: as after a crash right after the snapshot was renamed in
+        journal.close();
+
+        List<String> replayed = new ArrayList<>();
+        WriteJournal reopened = new WriteJournal(dir, WriteJournal.FsyncPolicy.ALWAYS, 50L, LOGGER);
+        int count = reopened.replay(key -> key.equals("coins") ? coins : 0L,
+                (key, value) -> replayed.add(key + "=" + value),
+                (key, delta, s) -> replayed.add(key + "+" + delta + "@" + s));
+        reopened.close();
+
+        assertEquals(List.of("coins+3@" + (coins + 1), "rank=vip", "rank=admin"), replayed);
+        assertEquals(3, count);
+        assertEquals(seq + 1, reopened.getSequence());
+    }
+}
@@ -0,0 +1,92 @@
+package yov.async;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yov.storage.impl.SqliteStorage;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteQueueJournalTest {
+
+    private static final Logger LOGGER = Logger.getLogger("WriteQueueJournalTest");
+
+    @TempDir
+    File dir;
+
+    private SqliteStorage storage;
+    private IoExecutor io;
+
+    // no timed flushes: the test decides what reaches storage before the "crash"
+    private WriteQueue open(File journalDir) throws Exception {
+        if (storage == null) {
+            storage = new SqliteStorage(dir);
+            storage.connect();
+            io = new IoExecutor("test-io", IoExecutor.Mode.PLATFORM, LOGGER);
+        }
+        WriteJournal journal = new WriteJournal(journalDir, WriteJournal.FsyncPolicy.ALWAYS, 50L, LOGGER);
+        return new WriteQueue(storage, LOGGER, io, journal, null,
+                new WriteQueue.Settings(600_000L, 600_000L, 600_000L, 1000, 100_000, false, 1, Integer.MAX_VALUE, 600_000L, 0));
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        if (storage != null) storage.close();
+    }
+
+    @Test
+    void replayAppliesEachJournaledDeltaOnce() throws Exception {
+        File journalDir = new File(dir, "journal");
+        File crashed = new File(dir, "crashed");
+        WriteQueue queue = open(journalDir);
+        storage.set("coins", "100");
+
+        // the first delta commits, but the crash copy still holds its record, as after a crash before truncation
+        queue.enqueueDelta("coins", new BigDecimal("1"), WritePriority.BACKGROUND);
+        copy(journalDir, crashed);
+        queue.flush();
+        queue.enqueueDelta("coins", new BigDecimal("2"), WritePriority.BACKGROUND);
+        queue.enqueueSet("rank", "vip", WritePriority.BACKGROUND);
+        copy(journalDir, crashed);
+
+        // another server adds meanwhile
+        storage.applyDeltas(Map.of("coins", new BigDecimal("10")));
+
+        open(crashed).flush();
+        assertEquals("113", storage.get("coins"));
+        assertEquals("vip", storage.get("rank"));
+    }
+
+    @Test
+    void sequencesContinueAfterTheJournalWasTruncated() throws Exception {
+        File journalDir = new File(dir, "journal");
+        WriteQueue queue = open(journalDir);
+        queue.enqueueDelta("coins", new BigDecimal("5"), WritePriority.BACKGROUND);
+        queue.close();
+        assertEquals("5", storage.get("coins"));
+
+        // nothing left to replay, yet a new delta must not reuse a sequence storage has marked as applied
+        WriteQueue restarted = open(journalDir);
+        restarted.enqueueDelta("coins", new BigDecimal("5"), WritePriority.BACKGROUND);
+        File crashed = new File(dir, "crashed");
+        copy(journalDir, crashed);
+
+        open(crashed).flush();
+        assertEquals("10", storage.get("coins"));
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        if (!to.isDirectory()) assertTrue(to.mkdirs());
+        for (File f : from.listFiles()) {
+            Files.copy(f.toPath(), new File(to, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
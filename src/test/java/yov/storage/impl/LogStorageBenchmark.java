@@ -0,0 +1,116 @@
+package yov.storage.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yov.storage.StorageBackend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// not picked up by a plain test run: mvn test -Dtest=LogStorageBenchmark
+class LogStorageBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger("LogStorageBenchmark");
+    private static final int KEYS = 100_000;
+    private static final int PLAYERS = 1000;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void writesReadsAndPrefixLoads() throws Exception {
+        for (boolean fsync : new boolean[]{false, true}) {
+            File folder = new File(dir, fsync ? "fsync" : "nofsync");
+            LogStorage log = new LogStorage(folder, new LogStorage.Settings(64L << 20, 0.5, fsync), LOGGER);
+            log.connect();
+            try {
+                run(log, "LogStorage " + (fsync ? "fsync" : "no fsync"), fsync ? 2000 : KEYS);
+            } finally {
+                log.close();
+            }
+        }
+
+        // WAL with synchronous=NORMAL, comparable to the log without fsync
+        SqliteStorage sqlite = new SqliteStorage(new File(dir, "sqlite"));
+        sqlite.connect();
+        try {
+            run(sqlite, "SqliteStorage", KEYS);
+        } finally {
+            sqlite.close();
+        }
+    }
+
+    private static void run(StorageBackend log, String name, int singles) throws Exception {
+        long t = System.nanoTime();
+        for (int i = 0; i < singles; i++) log.set("single" + i, "value" + i);
+        long set = System.nanoTime() - t;
+
+        // player keys as "<player>_<variable>", KEYS / PLAYERS each
+        t = System.nanoTime();
+        for (int off = 0; off < KEYS; off += 1000) {
+            Map<String, String> batch = new HashMap<>();
+            for (int i = off; i < off + 1000; i++) batch.put("p" + (i % PLAYERS) + "_v" + (i / PLAYERS), "v" + i);
+            log.writeBatch(batch);
+        }
+        long batches = System.nanoTime() - t;
+
+        Random random = new Random(1);
+        t = System.nanoTime();
+        for (int i = 0; i < KEYS; i++) log.get("p" + random.nextInt(PLAYERS) + "_v" + random.nextInt(KEYS / PLAYERS));
+        long get = System.nanoTime() - t;
+
+        // SqliteStorage shares one connection, the write queue never calls it from two threads
+        int threads = log.getMaxWriteConcurrency() > 1 ? 8 : 1;
+        int perThread = singles / threads;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        t = System.nanoTime();
+        for (int th = 0; th < threads; th++) {
+            int thread = th;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < perThread; i++) log.set("c" + thread + "_" + i, "x");
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+        long concurrent = System.nanoTime() - t;
+        pool.shutdown();
+
+        // what a player join loads: the sorted key set against the scan of every key the default does
+        int loads = 200;
+        t = System.nanoTime();
+        for (int i = 0; i < loads; i++) assertEquals(KEYS / PLAYERS, log.getEntriesByPrefix("p" + i + "_").size());
+        long prefix = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        for (int i = 0; i < loads / 20; i++) {
+            String p = "p" + i + "_";
+            List<String> matching = new ArrayList<>();
+            for (String key : log.getAllKeys()) {
+                if (key.startsWith(p)) matching.add(key);
+            }
+            assertEquals(KEYS / PLAYERS, log.getMany(matching).size());
+        }
+        long scan = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        int all = log.getAllEntries().size();
+        long full = System.nanoTime() - t;
+
+        LOGGER.info(String.format(Locale.ROOT, "%s: set %.1f us/op | writeBatch 100x1000 %d ms | get %.2f us/op | %d threads set %.1f us/op"
+                        + " | prefix load %.1f us | scanned prefix load %.1f us | getAllEntries(%d) %d ms",
+                name, set / 1e3 / singles, batches / 1_000_000L, get / 1e3 / KEYS, threads, concurrent / 1e3 / (threads * perThread),
+                prefix / 1e3 / loads, scan / 1e3 / (loads / 20), all, full / 1_000_000L));
+    }
+}
@@ -0,0 +1,218 @@
+package yov.storage.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogStorageTest {
+
+    private static final Logger LOGGER = Logger.getLogger("LogStorageTest");
+
+    @TempDir
+    File dir;
+
+    private LogStorage storage;
+
+    private LogStorage open(File folder) throws Exception {
+        storage = new LogStorage(folder, new LogStorage.Settings(1L << 20, 0.5, false), LOGGER);
+        storage.connect();
+        return storage;
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        if (storage != null) storage.close();
+    }
+
+    @Test
+    void writesSurviveAReopen() throws Exception {
+        LogStorage log = open(dir);
+        for (int i = 0; i < 20000; i++) log.set("k" + i, "v" + i);
+        log.delete("k7");
+        log.set("k8", "eight");
+
+        Map<String, BigDecimal> deltas = new HashMap<>();
+        deltas.put("n", new BigDecimal("5"));
+        log.applyDeltas(deltas);
+        assertEquals("10", log.applyDeltas(deltas).get("n"));
+        log.close();
+
+        log = open(dir);
+        assertNull(log.get("k7"));
+        assertEquals("eight", log.get("k8"));
+        assertEquals("v19999", log.get("k19999"));
+        assertEquals("10", log.get("n"));
+        assertEquals(20000, log.getAllEntries().size());
+    }
+
+    @Test
+    void rebuildsTheIndexAndCutsATornWrite() throws Exception {
+        LogStorage log = open(dir);
+        for (int i = 0; i < 1000; i++) log.set("k" + i, "v" + i);
+        log.delete("k7");
+
+        // copied while open: the index is not checkpointed, so the copy has to replay the segments
+        File crashed = new File(dir, "crashed");
+        File logDir = new File(crashed, "variables-log");
+        assertTrue(logDir.mkdirs());
+        File[] files = new File(dir, "variables-log").listFiles();
+        for (File f : files) Files.copy(f.toPath(), new File(logDir, f.getName()).toPath());
+
+        File[] segments = logDir.listFiles((d, name) -> name.endsWith(".seg"));
+        Arrays.sort(segments);
+        try (FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true)) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15});
+        }
+        log.close();
+
+        log = open(crashed);
+        assertNull(log.get("k7"));
+        assertEquals("v999", log.get("k999"));
+        assertEquals(999, log.getAllKeys().size());
+
+        log.set("x", "y");
+        log.close();
+        log = open(crashed);
+        assertEquals("y", log.get("x"));
+    }
+
+    @Test
+    void compactionKeepsTheLatestValues() throws Exception {
+        LogStorage log = open(dir);
+        for (int round = 0; round < 20; round++) {
+            Map<String, String> batch = new HashMap<>();
+            for (int i = 0; i < 5000; i++) batch.put("c" + i, "r" + round + "_" + i);
+            log.writeBatch(batch);
+        }
+        for (int i = 0; i < 1000; i++) log.delete("c" + i);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (segmentBytes() > 1_000_000L && System.currentTimeMillis() < deadline) Thread.sleep(50L);
+        assertTrue(segmentBytes() < 1_000_000L);
+
+        assertNull(log.get("c0"));
+        assertEquals("r19_4999", log.get("c4999"));
+        assertEquals(4000, log.getAllKeys().size());
+        assertEquals(4000, log.getKeysByPrefix("c").size());
+
+        log.close();
+        log = open(dir);
+        assertEquals("r19_4999", log.get("c4999"));
+        assertEquals(4000, log.getKeysByPrefix("c").size());
+    }
+
+    @Test
+    void prefixAndGlobalReadsFollowWritesAndReopens() throws Exception {
+        LogStorage log = open(dir);
+        log.set("steve_coins", "1");
+        log.set("steve_rank", "guest");
+        log.set("stevens_coins", "2");
+        log.set("alex_coins", "3");
+        log.set("motd", "hi");
+        log.set("season", "4");
+        log.delete("steve_rank");
+
+        assertEquals(List.of("steve_coins"), log.getKeysByPrefix("steve_"));
+        assertEquals(Map.of("steve_coins", "1", "stevens_coins", "2"), log.getEntriesByPrefix("steve"));
+        assertEquals(Map.of("motd", "hi", "season", "4"), log.getGlobalEntries());
+        assertTrue(log.getKeysByPrefix("zed").isEmpty());
+
+        // once from the checkpointed index, once replayed from the segments
+        log.close();
+        log = open(dir);
+        assertEquals(List.of("steve_coins"), log.getKeysByPrefix("steve_"));
+        assertEquals(Map.of("motd", "hi", "season", "4"), log.getGlobalEntries());
+
+        log.set("steve_rank", "vip");
+        log.close();
+        for (File f : new File(dir, "variables-log").listFiles((d, name) -> name.endsWith(".idx"))) {
+            assertTrue(f.delete());
+        }
+        log = open(dir);
+        assertEquals(List.of("steve_coins", "steve_rank"), log.getKeysByPrefix("steve_"));
+        assertEquals(Map.of("alex_coins", "3"), log.getEntriesByPrefix("alex_"));
+    }
+
+    @Test
+    void keysWrittenBeforeTheFirstPrefixReadAreFound() throws Exception {
+        LogStorage log = open(dir);
+        log.set("steve_coins", "1");
+        log.set("motd", "hi");
+        log.close();
+
+        // reopened from the checkpoint: the sorted keys are only read on the first prefix read
+        log = open(dir);
+        log.set("steve_rank", "vip");
+        log.delete("motd");
+        log.set("season", "4");
+        assertEquals(List.of("steve_coins", "steve_rank"), log.getKeysByPrefix("steve_"));
+        assertEquals(Map.of("season", "4"), log.getGlobalEntries());
+
+        log.delete("steve_coins");
+        assertEquals(Map.of("steve_rank", "vip"), log.getEntriesByPrefix("steve_"));
+    }
+
+    @Test
+    void aSecondInstanceCannotOpenTheSameDirectory() throws Exception {
+        LogStorage log = open(dir);
+        log.set("k", "v");
+
+        LogStorage second = new LogStorage(dir, new LogStorage.Settings(1L << 20, 0.5, false), LOGGER);
+        assertThrows(IOException.class, second::connect);
+        assertEquals("v", log.get("k"));
+
+        log.close();
+        second.connect();
+        assertEquals("v", second.get("k"));
+        second.close();
+    }
+
+    @Test
+    void failedFlushKeepsTheBytesAtTheirOffsets() throws Exception {
+        File file = new File(dir, LogSegment.name(1));
+        LogSegment segment = LogSegment.create(file, 1, false);
+        long first = segment.append(group("a", "1"));
+        segment.close();
+
+        assertThrows(IOException.class, segment::flush);
+        long second = segment.append(group("b", "2"));
+        assertArrayEquals("1".getBytes(), segment.read(first, true).value());
+        assertArrayEquals("2".getBytes(), segment.read(second, true).value());
+
+        segment.discard(second);
+        assertEquals(second, segment.size());
+        assertArrayEquals("1".getBytes(), segment.read(first, true).value());
+        assertNull(segment.read(second, true));
+    }
+
+    private static ByteBuffer group(String key, String value) {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        LogSegment.encode(buf, new CRC32(), LogSegment.PUT, key.getBytes(), value.getBytes());
+        return buf.flip();
+    }
+
+    private long segmentBytes() {
+        long bytes = 0L;
+        for (File f : new File(dir, "variables-log").listFiles((d, name) -> name.endsWith(".seg"))) bytes += f.length();
+        return bytes;
+    }
+}
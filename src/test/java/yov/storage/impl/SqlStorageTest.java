@@ -0,0 +1,215 @@
+package yov.storage.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import yov.storage.BulkAction;
+import yov.storage.ChangeLogEntry;
+import yov.storage.KeyPattern;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// H2 in MySQL mode stands in for MariaDB: same upsert and quoting syntax, one JVM, no server
+class SqlStorageTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private SqlStorage storage;
+
+    private SqlStorage open(boolean rewriteBatchedStatements) throws Exception {
+        YamlConfiguration cfg = new YamlConfiguration();
+        cfg.set("storage.mariadb.change-log.enabled", true);
+        cfg.set("storage.mariadb.rewrite-batched-statements", rewriteBatchedStatements);
+
+        HikariConfig hikari = new HikariConfig();
+        hikari.setJdbcUrl("jdbc:h2:mem:yov" + DATABASES.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        hikari.setMaximumPoolSize(2);
+
+        // H2 has no @@ system variables and no AUTO_INCREMENT in information_schema; its identity columns step by one
+        storage = new SqlStorage(cfg, "localhost", 3306, "yov", "sa", "") {
+            @Override
+            long readAutoIncrementStep(Statement st) {
+                return 1L;
+            }
+
+            @Override
+            long readNextVersion(Statement st) throws SQLException {
+                try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(`version`), 0) + 1 FROM `variables_changes`")) {
+                    rs.next();
+                    return rs.getLong(1);
+                }
+            }
+        };
+        storage.connect(new HikariDataSource(hikari));
+        return storage;
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        if (storage != null) storage.close();
+    }
+
+    @Test
+    void writeBatchUpsertsDeletesAndLogsInOneTransaction() throws Exception {
+        for (boolean rewrite : new boolean[]{true, false}) {
+            SqlStorage sql = open(rewrite);
+            sql.set("steve_coins", "1");
+            sql.set("steve_rank", "guest");
+            long head = sql.getChangeLogHead();
+
+            Map<String, String> batch = new HashMap<>();
+            batch.put("steve_coins", "2");
+            batch.put("steve_rank", null);
+            batch.put("alex_coins", "3");
+            sql.writeBatch(batch);
+
+            assertEquals("2", sql.get("steve_coins"));
+            assertNull(sql.get("steve_rank"));
+            assertEquals("3", sql.get("alex_coins"));
+
+            List<ChangeLogEntry> changes = sql.readChanges(head, 100);
+            Map<String, String> logged = new HashMap<>();
+            for (ChangeLogEntry entry : changes) {
+                assertTrue(entry.version() > head);
+                logged.put(entry.key(), entry.value());
+            }
+            assertEquals(batch, logged);
+            assertEquals(3, changes.size());
+
+            sql.close();
+        }
+    }
+
+    @Test
+    void failedWriteBatchLeavesNoRowsAndNoChanges() throws Exception {
+        SqlStorage sql = open(true);
+        sql.set("steve_coins", "1");
+        long head = sql.getChangeLogHead();
+
+        // the key column holds 255 characters, so this row fails after the others were written
+        Map<String, String> batch = new HashMap<>();
+        batch.put("steve_coins", "2");
+        batch.put("steve_rank", null);
+        batch.put("x".repeat(300), "3");
+
+        assertThrows(Exception.class, () -> sql.writeBatch(batch));
+
+        assertEquals("1", sql.get("steve_coins"));
+        assertEquals(head, sql.getChangeLogHead());
+        assertTrue(sql.readChanges(head, 100).isEmpty());
+    }
+
+    @Test
+    void readVersionsFindsOnlyExistingVersions() throws Exception {
+        SqlStorage sql = open(true);
+        sql.set("steve_coins", "1");
+        sql.set("alex_coins", "2");
+        long head = sql.getChangeLogHead();
+
+        List<ChangeLogEntry> found = sql.readVersions(List.of(head, head + 1000));
+        assertEquals(1, found.size());
+        assertEquals("alex_coins", found.get(0).key());
+        assertEquals("2", found.get(0).value());
+    }
+
+    @Test
+    void applyDeltasRecordsTheHighestJournalSequence() throws Exception {
+        SqlStorage sql = open(true);
+        sql.set("steve_coins", "1");
+
+        Map<String, BigDecimal> deltas = new HashMap<>();
+        deltas.put("steve_coins", new BigDecimal("2"));
+        deltas.put("alex_coins", new BigDecimal("5"));
+        sql.applyDeltas(deltas, "server-a", Map.of("steve_coins", 7L, "alex_coins", 9L));
+        sql.applyDeltas(Map.of("steve_coins", BigDecimal.ONE), "server-a", Map.of("steve_coins", 4L));
+        sql.applyDeltas(Map.of("steve_coins", BigDecimal.ONE), "server-b", Map.of("steve_coins", 3L));
+
+        assertEquals("5", sql.get("steve_coins"));
+        assertEquals(Map.of("steve_coins", 7L, "alex_coins", 9L), sql.readAppliedSequences("server-a"));
+        assertEquals(Map.of("steve_coins", 3L), sql.readAppliedSequences("server-b"));
+
+        sql.pruneAppliedSequences("server-a", 8L);
+        assertEquals(Map.of("alex_coins", 9L), sql.readAppliedSequences("server-a"));
+        assertEquals(Map.of("steve_coins", 3L), sql.readAppliedSequences("server-b"));
+    }
+
+    @Test
+    void bulkApplySetsAddsAndDeletesByPattern() throws Exception {
+        SqlStorage sql = open(true);
+        sql.set("steve_coins", "10");
+        sql.set("steve_gems", " 2,5 ");
+        sql.set("steve_rank", "vip");
+        sql.set("stevex_coins", "1");
+        sql.set("alex_coins", "1");
+        long head = sql.getChangeLogHead();
+
+        // '_' is a literal in the glob, so stevex_coins stays out; text values are left alone by an add
+        assertEquals(2, sql.bulkApply(KeyPattern.compile("steve_*"), BulkAction.ADD, "-0.500001"));
+        assertEquals("9.499999", sql.get("steve_coins"));
+        assertEquals("1.999999", sql.get("steve_gems"));
+        assertEquals("vip", sql.get("steve_rank"));
+        assertEquals("1", sql.get("stevex_coins"));
+        assertEquals(Map.of("steve_coins", "9.499999", "steve_gems", "1.999999"), changes(sql, head));
+
+        head = sql.getChangeLogHead();
+        assertEquals(3, sql.bulkApply(KeyPattern.compile("steve_*"), BulkAction.SET, "0"));
+        assertEquals("0", sql.get("steve_rank"));
+        assertEquals(Map.of("steve_coins", "0", "steve_gems", "0", "steve_rank", "0"), changes(sql, head));
+
+        head = sql.getChangeLogHead();
+        assertEquals(3, sql.bulkApply(KeyPattern.compile("steve_*"), BulkAction.DELETE, null));
+        assertNull(sql.get("steve_coins"));
+        assertEquals("1", sql.get("stevex_coins"));
+        assertEquals("1", sql.get("alex_coins"));
+        Map<String, String> deleted = new HashMap<>();
+        deleted.put("steve_coins", null);
+        deleted.put("steve_gems", null);
+        deleted.put("steve_rank", null);
+        assertEquals(deleted, changes(sql, head));
+
+        // a whole sum loses the trailing zeros and the point
+        assertEquals(1, sql.bulkApply(KeyPattern.compile("alex_*"), BulkAction.ADD, "4"));
+        assertEquals("5", sql.get("alex_coins"));
+        assertEquals(0, sql.bulkApply(KeyPattern.compile("nobody_*"), BulkAction.ADD, "1"));
+    }
+
+    @Test
+    void applyDeltasCreatesMissingKeysAndAddsToExistingOnes() throws Exception {
+        SqlStorage sql = open(true);
+        sql.set("steve_coins", "1.5");
+        sql.set("steve_rank", "vip");
+        long head = sql.getChangeLogHead();
+
+        Map<String, BigDecimal> deltas = new HashMap<>();
+        deltas.put("steve_coins", new BigDecimal("-0.25"));
+        deltas.put("steve_rank", BigDecimal.ONE);
+        deltas.put("alex_coins", new BigDecimal("3"));
+        Map<String, String> stored = sql.applyDeltas(deltas);
+
+        assertEquals(Map.of("steve_coins", "1.25", "steve_rank", "vip", "alex_coins", "3"), stored);
+        assertEquals("1.25", sql.get("steve_coins"));
+        assertEquals("vip", sql.get("steve_rank"));
+        assertEquals("3", sql.get("alex_coins"));
+        assertEquals(Map.of("steve_coins", "1.25", "alex_coins", "3"), changes(sql, head));
+    }
+
+    private static Map<String, String> changes(SqlStorage sql, long head) throws Exception {
+        Map<String, String> logged = new HashMap<>();
+        for (ChangeLogEntry entry : sql.readChanges(head, 100)) logged.put(entry.key(), entry.value());
+        return logged;
+    }
+}